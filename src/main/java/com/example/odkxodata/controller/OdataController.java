@@ -1,28 +1,37 @@
 package com.example.odkxodata.controller;
 
 import com.example.odkxodata.service.SyncDataConverter;
+import com.example.odkxodata.service.RequestDeadline;
+import com.example.odkxodata.service.SyncChangeFeed;
 import com.example.odkxodata.service.SyncEdmProvider;
+import com.example.odkxodata.service.SyncErrorProcessor;
+import com.example.odkxodata.service.SyncTenant;
+import com.example.odkxodata.service.SyncTenantRegistry;
+import com.example.odkxodata.service.UpstreamOverloadedException;
 import lombok.extern.java.Log;
+import org.apache.olingo.commons.api.http.HttpHeader;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
 import org.apache.olingo.server.api.OData;
 import org.apache.olingo.server.api.ODataHttpHandler;
 import org.apache.olingo.server.api.ServiceMetadata;
-import org.apache.olingo.server.api.processor.EntityCollectionProcessor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
 
 /**
  * The request controller that will dispatch all client requests to URLs below the service's root URL
- * to the OData handler class
+ * to the OData handler class of the tenant serving the request path
  * TODO: handle invalid credentials
  */
 
@@ -33,41 +42,148 @@ public class OdataController {
     @Value("${server.root}")
     public String uri;
 
-    @Autowired
-    SyncEdmProvider edmProvider;
+    // time a request may wait for the Sync server before it is rejected
+    @Value("${odk.request.timeout:30000}")
+    public long requestTimeoutMillis;
 
     @Autowired
-    EntityCollectionProcessor entityCollectionProcessor;
+    SyncTenantRegistry tenantRegistry;
 
     @Autowired
-    SyncDataConverter syncDataConverter;
+    SyncChangeFeed changeFeed;
 
     /**
      * Handle client's request through OData process and sent back a corresponding response
      * @param request http request sent by the client
      * @param response http response that the client will receive
      */
-    @RequestMapping(value = "*")
+    @RequestMapping(value = "**")
     public void process(HttpServletRequest request, HttpServletResponse response) {
-        // pre-process
         log.info("Processing request: " + request.getRequestURI());
+        String path = request.getRequestURI().substring(request.getContextPath().length() + uri.length());
+        SyncTenant tenant = tenantRegistry.resolve(path);
+        if (tenant == null) {
+            response.setStatus(HttpStatusCode.NOT_FOUND.getStatusCode());
+            return;
+        }
+        // each tenant processes a bounded number of requests at once, reject the rest instead of queueing them
+        if (!tenant.getBulkhead().tryAcquire()) {
+            log.warning("Too many concurrent requests for tenant: " + tenant.getName());
+            response.setStatus(HttpStatusCode.SERVICE_UNAVAILABLE.getStatusCode());
+            response.setHeader(HttpHeader.RETRY_AFTER, "1");
+            return;
+        }
+        RequestDeadline.start(requestTimeoutMillis);
+        try {
+            process(tenant, request, response);
+        } catch (UpstreamOverloadedException e) {
+            log.warning("Reject request: " + e.getMessage());
+            response.setStatus(HttpStatusCode.SERVICE_UNAVAILABLE.getStatusCode());
+            response.setHeader(HttpHeader.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+        } finally {
+            RequestDeadline.clear();
+            tenant.getSyncDataConverter().releaseSyncClient();
+            tenant.getBulkhead().release();
+        }
+    }
+
+    /**
+     * Subscribe the client to the row changes of a table, which are sent as Server-Sent Events
+     * @param tableId the table identifier or name
+     * @param request http request sent by the client
+     * @param response http response that the client will receive
+     * @return the SseEmitter that the changes are sent to, or null if the subscription was rejected
+     */
+    @GetMapping(value = {"$changes", "{tenant}/$changes"})
+    public SseEmitter subscribe(@RequestParam("table") String tableId, HttpServletRequest request,
+                                HttpServletResponse response) {
+        log.info("Processing subscription: " + request.getRequestURI());
+        String path = request.getRequestURI().substring(request.getContextPath().length() + uri.length());
+        SyncTenant tenant = tenantRegistry.resolve(path);
+        if (tenant == null || !path.equals(tenant.getPathPrefix() + "/$changes")) {
+            response.setStatus(HttpStatusCode.NOT_FOUND.getStatusCode());
+            return null;
+        }
+        if (!changeFeed.isEnabled(tenant)) {
+            response.setStatus(HttpStatusCode.NOT_IMPLEMENTED.getStatusCode());
+            return null;
+        }
+        if (!tenant.getBulkhead().tryAcquire()) {
+            log.warning("Too many concurrent requests for tenant: " + tenant.getName());
+            response.setStatus(HttpStatusCode.SERVICE_UNAVAILABLE.getStatusCode());
+            response.setHeader(HttpHeader.RETRY_AFTER, "1");
+            return null;
+        }
+        // the subscription only holds the bulkhead while the credentials and the table are checked
+        RequestDeadline.start(requestTimeoutMillis);
+        String dataETag;
+        try {
+            SyncDataConverter syncDataConverter = tenant.getSyncDataConverter();
+            syncDataConverter.initSyncClient(getCredentials(request));
+            if (syncDataConverter.getTables().stream().noneMatch(t -> t.getTableId().equals(tableId))) {
+                response.setStatus(HttpStatusCode.NOT_FOUND.getStatusCode());
+                return null;
+            }
+            // the changes are sent from this dataETag on, so that none made after the subscription are missed
+            dataETag = syncDataConverter.getDataETag(tableId);
+            if (dataETag == null) {
+                response.setStatus(HttpStatusCode.BAD_GATEWAY.getStatusCode());
+                return null;
+            }
+        } catch (UpstreamOverloadedException e) {
+            log.warning("Reject subscription: " + e.getMessage());
+            response.setStatus(HttpStatusCode.SERVICE_UNAVAILABLE.getStatusCode());
+            response.setHeader(HttpHeader.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+            return null;
+        } finally {
+            RequestDeadline.clear();
+            tenant.getSyncDataConverter().releaseSyncClient();
+            tenant.getBulkhead().release();
+        }
+        SseEmitter emitter = changeFeed.subscribe(tenant, tableId, getCredentials(request), dataETag);
+        if (emitter == null) {
+            log.warning("Too many subscriptions");
+            response.setStatus(HttpStatusCode.SERVICE_UNAVAILABLE.getStatusCode());
+            response.setHeader(HttpHeader.RETRY_AFTER, "1");
+        }
+        return emitter;
+    }
+
+    /**
+     * Handle client's request through the given tenant's OData process
+     * @param tenant the tenant serving the request
+     * @param request http request sent by the client
+     * @param response http response that the client will receive
+     */
+    private void process(SyncTenant tenant, HttpServletRequest request, HttpServletResponse response) {
+        // pre-process
+        SyncDataConverter syncDataConverter = tenant.getSyncDataConverter();
+        SyncEdmProvider edmProvider = tenant.getEdmProvider();
         String[] credentials = getCredentials(request);
         syncDataConverter.initSyncClient(credentials);
         List<SyncDataConverter.TableInfo> tableInfos = syncDataConverter.getTables();
+        if (syncDataConverter.keepSyncClient()) {
+            // first valid request of the user (in a while), its rows are not cached yet
+            tenant.prefetchHotTables(credentials);
+        }
         edmProvider.updateTableIds(tableInfos);
 
         // OData process, create odata handler and configure it with EdmProvider and Processor
         OData odata = OData.newInstance();
-        ServiceMetadata edm = odata.createServiceMetadata(edmProvider, new ArrayList<>());
+        ServiceMetadata edm = tenant.getServiceMetadata(odata);
         ODataHttpHandler handler = odata.createHandler(edm);
-        handler.register(entityCollectionProcessor);
+        handler.register(tenant.createEntityCollectionProcessor());
+        handler.register(tenant.createMediaEntityProcessor());
+        handler.register(tenant.createMetadataProcessor());
+        handler.register(new SyncErrorProcessor());
+        String servletPath = uri + tenant.getPathPrefix();
         handler.process(new HttpServletRequestWrapper(request) {
             // It needs to be overridden because Olingo just wants the prefix part of the servlet path,
             // and the rest of the servlet path is served as OData path. While Spring MVC maps the entire path
             // as the servlet path
             @Override
             public String getServletPath() {
-                return uri;
+                return servletPath;
             }
         }, response);
         System.out.println();
@@ -0,0 +1,281 @@
+package com.example.odkxodata.service;
+
+import lombok.extern.java.Log;
+import org.apache.wink.json4j.JSONException;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class used to bound the number of concurrent calls to a Sync server. The limit is adapted with AIMD based on the
+ * observed upstream latency: it grows by one call per round trip while latency stays close to the lowest latency
+ * seen so far, and is cut multiplicatively once latency grows (a sign that the Sync server starts queueing) or a call
+ * fails with an IOException or times out. Other failures (e.g. an error page for invalid credentials, which the
+ * SyncClient reports as a JSONException) say nothing about congestion and leave the limit as it is. Calls above the limit wait in a bounded queue until the request deadline, and are rejected right away once
+ * the queue is full. Each call is bounded by a timeout, after which its caller gives up and its slot is given back.
+ * Only calls of about constant cost should adapt the limit through their latency, calls whose latency depends on
+ * the amount of transferred data (e.g. all rows of a table) would otherwise make a large table look like congestion
+ */
+@Log
+public class AdaptiveConcurrencyLimiter {
+    // a call is considered congested once its latency exceeds the baseline latency by this factor
+    private static final double LATENCY_TOLERANCE = 2.0;
+    // the factor applied to the limit on congestion
+    private static final double BACKOFF_RATIO = 0.9;
+    // weight of a new sample in the smoothed latency
+    private static final double SMOOTHING = 0.2;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueueSize;
+    private final long callTimeoutNanos;
+    // runs the calls so that their callers can stop waiting for them after the call timeout
+    private final ExecutorService executor;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private double limit;
+    private int inFlight;
+    private int queued;
+    // lowest observed latency, slowly decayed so that the baseline can follow a changing Sync server
+    private double baselineNanos = Double.MAX_VALUE;
+    private volatile double smoothedNanos;
+
+    public AdaptiveConcurrencyLimiter(int maxLimit, int maxQueueSize, long callTimeoutMillis) {
+        this.minLimit = 1;
+        this.maxLimit = Math.max(1, maxLimit);
+        this.maxQueueSize = maxQueueSize;
+        this.callTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(callTimeoutMillis);
+        this.limit = Math.max(minLimit, this.maxLimit / 2.0);
+        // timed out calls keep running until the SyncClient's own socket timeout, at most as many as are in flight
+        this.executor = new ThreadPoolExecutor(0, 2 * this.maxLimit, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                r -> {
+                    Thread thread = new Thread(r, "sync-upstream-call");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * A single call to a Sync server
+     * @param <T> type of the call's result
+     */
+    @FunctionalInterface
+    public interface UpstreamCall<T> {
+        T call() throws IOException, JSONException;
+    }
+
+    /**
+     * Run the given call once a slot is available, and adapt the limit based on its latency
+     * @param call the call to the Sync server
+     * @return the result of the call
+     * @throws UpstreamOverloadedException if no slot became available before the request deadline, or the call
+     * timed out
+     */
+    public <T> T call(UpstreamCall<T> call) throws IOException, JSONException {
+        return call(call, true);
+    }
+
+    /**
+     * Run the given call once a slot is available
+     * @param call the call to the Sync server
+     * @param measureLatency whether the call's latency should adapt the limit, which should be false for calls whose
+     *                       latency mostly depends on the amount of transferred data (e.g. rows or file downloads)
+     * @return the result of the call
+     * @throws UpstreamOverloadedException if no slot became available before the request deadline, or the call
+     * timed out
+     */
+    public <T> T call(UpstreamCall<T> call, boolean measureLatency) throws IOException, JSONException {
+        return call(call, measureLatency, callTimeoutNanos, true);
+    }
+
+    /**
+     * Run the given transfer once a slot is available, and wait for it up to its own timeout even past the request
+     * deadline. Meant for transfers whose duration depends on their size (e.g. attachment downloads), which would
+     * never finish within the call timeout. The latency of the transfer does not adapt the limit
+     * @param call the call to the Sync server
+     * @param timeoutMillis time in milliseconds the transfer may take
+     * @return the result of the call
+     * @throws UpstreamOverloadedException if no slot became available before the request deadline, or the transfer
+     * timed out
+     */
+    public <T> T transfer(UpstreamCall<T> call, long timeoutMillis) throws IOException, JSONException {
+        return call(call, false, TimeUnit.MILLISECONDS.toNanos(timeoutMillis), false);
+    }
+
+    /**
+     * Run the given call once a slot is available
+     * @param call the call to the Sync server
+     * @param measureLatency whether the call's latency should adapt the limit
+     * @param timeoutNanos time the call may take
+     * @param untilDeadline whether the call is also bounded by the request deadline
+     * @return the result of the call
+     */
+    private <T> T call(UpstreamCall<T> call, boolean measureLatency, long timeoutNanos, boolean untilDeadline)
+            throws IOException, JSONException {
+        acquire();
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.OTHER_FAILURE;
+        try {
+            long waitNanos = untilDeadline ? Math.min(timeoutNanos, RequestDeadline.remainingNanos()) : timeoutNanos;
+            T result = await(call, waitNanos);
+            outcome = Outcome.SUCCESS;
+            return result;
+        } catch (IOException | UpstreamOverloadedException e) {
+            // the Sync server could not be reached, failed or did not answer in time
+            outcome = Outcome.CONGESTION;
+            throw e;
+        } finally {
+            release(System.nanoTime() - start, outcome, measureLatency);
+        }
+    }
+
+    /**
+     * Run the given call and wait for its result until the given timeout
+     * @param call the call to the Sync server
+     * @param timeoutNanos time to wait for the result
+     * @return the result of the call
+     * @throws UpstreamOverloadedException if the call timed out
+     */
+    private <T> T await(UpstreamCall<T> call, long timeoutNanos) throws IOException, JSONException {
+        Future<T> future;
+        try {
+            future = executor.submit(call::call);
+        } catch (RejectedExecutionException e) {
+            throw new UpstreamOverloadedException("Too many Sync server calls are still running", retryAfterSeconds());
+        }
+        try {
+            return future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // the SyncClient cannot abort the call, but its caller stops waiting and its slot is given back
+            future.cancel(true);
+            throw new UpstreamOverloadedException("Sync server call timed out", retryAfterSeconds());
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new UpstreamOverloadedException("Interrupted while waiting for the Sync server", retryAfterSeconds());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof JSONException) {
+                throw (JSONException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Wait for a free slot until the current request's deadline
+     */
+    private void acquire() {
+        lock.lock();
+        try {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                return;
+            }
+            if (queued >= maxQueueSize) {
+                throw new UpstreamOverloadedException("Sync server call queue is full", retryAfterSeconds());
+            }
+            queued++;
+            try {
+                long remainingNanos = RequestDeadline.remainingNanos();
+                while (inFlight >= (int) limit) {
+                    if (remainingNanos <= 0) {
+                        throw new UpstreamOverloadedException("Request deadline passed while waiting for the Sync server",
+                                retryAfterSeconds());
+                    }
+                    remainingNanos = released.awaitNanos(remainingNanos);
+                }
+                inFlight++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UpstreamOverloadedException("Interrupted while waiting for the Sync server", retryAfterSeconds());
+            } finally {
+                queued--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release a slot and adapt the limit based on the call's outcome
+     * @param latencyNanos the call's latency
+     * @param outcome the call's outcome
+     * @param measureLatency whether the call's latency should adapt the limit
+     */
+    private void release(long latencyNanos, Outcome outcome, boolean measureLatency) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (outcome == Outcome.OTHER_FAILURE) {
+                // e.g. invalid credentials, whose error page is answered right away
+                released.signalAll();
+                return;
+            }
+            boolean congested = outcome == Outcome.CONGESTION;
+            if (!measureLatency) {
+                if (congested) {
+                    limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                }
+                released.signalAll();
+                return;
+            }
+            smoothedNanos = smoothedNanos == 0 ? latencyNanos : (1 - SMOOTHING) * smoothedNanos + SMOOTHING * latencyNanos;
+            baselineNanos = Math.min(baselineNanos * 1.01, latencyNanos);
+            if (congested || latencyNanos > baselineNanos * LATENCY_TOLERANCE) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                log.fine("Decrease Sync server concurrency limit to " + limit);
+            } else if (inFlight + 1 >= (int) limit) {
+                // only grow when the limit was actually reached, otherwise the latency says nothing about it
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the number of seconds a rejected client should wait before retrying
+     * @return the smoothed upstream latency in seconds, at least 1
+     */
+    private long retryAfterSeconds() {
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds((long) Math.ceil(smoothedNanos)));
+    }
+
+    /**
+     * Outcome of a single call, which decides how the limit is adapted
+     */
+    private enum Outcome {
+        SUCCESS,
+        // an IOException or timeout, which backs the limit off
+        CONGESTION,
+        // any other failure, which leaves the limit as it is
+        OTHER_FAILURE
+    }
+
+    /**
+     * Return the current concurrency limit
+     * @return the current concurrency limit
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.odkxodata.service;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class used to keep downloaded row attachments in temporary files, so that several (range) requests for the same
+ * attachment are served from a single download. Files are keyed by the attachment's content hash, and the least
+ * recently used ones are deleted once their total size exceeds the limit. A file still being read is only deleted
+ * once its last reader released it
+ */
+public class AttachmentSpool {
+    private final long maxBytes;
+    // the map that maps from attachment key to its spooled file, least recently used first
+    private final Map<String, SpooledFile> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    public AttachmentSpool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Download of a single attachment
+     */
+    @FunctionalInterface
+    public interface Loader {
+        /**
+         * Download the attachment into a new temporary file
+         * @return the file, or null if the attachment could not be downloaded
+         */
+        File load();
+    }
+
+    /**
+     * Return the spooled file of an attachment, downloading it first if it is not spooled yet. Concurrent requests
+     * for the same attachment wait for a single download. The caller must release the returned file
+     * @param key the attachment's key, which must change whenever its content changes
+     * @param loader the download of the attachment
+     * @return the spooled file, or null if the attachment could not be downloaded
+     * @throws RuntimeException thrown by the loader (e.g. UpstreamOverloadedException), in which case nothing is
+     * spooled
+     */
+    public SpooledFile acquire(String key, Loader loader) {
+        SpooledFile spooled;
+        synchronized (this) {
+            spooled = files.computeIfAbsent(key, k -> new SpooledFile());
+            spooled.refs++;
+        }
+        boolean loaded = false;
+        try {
+            loaded = spooled.load(loader);
+        } finally {
+            if (!loaded) {
+                synchronized (this) {
+                    files.remove(key, spooled);
+                }
+                release(spooled);
+            }
+        }
+        if (!loaded) {
+            return null;
+        }
+        synchronized (this) {
+            if (!spooled.counted && files.get(key) == spooled) {
+                spooled.counted = true;
+                bytes += spooled.length;
+                evict();
+            }
+        }
+        return spooled;
+    }
+
+    /**
+     * Release a file returned by acquire, deleting it if it was evicted in the meantime
+     * @param spooled the spooled file
+     */
+    public synchronized void release(SpooledFile spooled) {
+        spooled.refs--;
+        if (spooled.refs == 0 && spooled.evicted) {
+            spooled.delete();
+        }
+    }
+
+    /**
+     * Evict the least recently used files until the spooled files fit the limit
+     */
+    private void evict() {
+        Iterator<SpooledFile> it = files.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            SpooledFile spooled = it.next();
+            if (!spooled.counted) {
+                // still downloading
+                continue;
+            }
+            it.remove();
+            bytes -= spooled.length;
+            spooled.evicted = true;
+            if (spooled.refs == 0) {
+                spooled.delete();
+            }
+        }
+    }
+
+    /**
+     * Store a spooled attachment file and the number of its readers
+     */
+    public static class SpooledFile {
+        // set once the download finished, guarded by the SpooledFile itself
+        private File file;
+        private boolean failed;
+        private long length;
+        // guarded by the AttachmentSpool
+        private int refs;
+        private boolean counted;
+        private boolean evicted;
+
+        /**
+         * Download the file unless it was downloaded already
+         * @param loader the download of the attachment
+         * @return true if the file is available
+         */
+        private synchronized boolean load(Loader loader) {
+            if (file == null && !failed) {
+                file = loader.load();
+                failed = file == null;
+                if (file != null) {
+                    length = file.length();
+                }
+            }
+            return file != null;
+        }
+
+        private synchronized void delete() {
+            if (file != null) {
+                file.delete();
+            }
+        }
+
+        public synchronized File getFile() {
+            return file;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.odkxodata.service;
+
+/**
+ * Class used to hold the deadline of the request processed by the current thread, so that calls to the Sync server
+ * made on behalf of the request stop waiting once the client is no longer interested in the response
+ */
+public class RequestDeadline {
+    private static final ThreadLocal<Long> deadlineNanos = new ThreadLocal<>();
+
+    private RequestDeadline() {
+    }
+
+    /**
+     * Set the deadline of the current thread's request
+     * @param timeoutMillis the request timeout in milliseconds, starting now
+     */
+    public static void start(long timeoutMillis) {
+        deadlineNanos.set(System.nanoTime() + timeoutMillis * 1_000_000L);
+    }
+
+    /**
+     * Remove the deadline of the current thread's request
+     */
+    public static void clear() {
+        deadlineNanos.remove();
+    }
+
+    /**
+     * Return the time left before the current thread's request deadline
+     * @return remaining nanoseconds, or Long.MAX_VALUE if the current thread has no deadline
+     */
+    public static long remainingNanos() {
+        Long deadline = deadlineNanos.get();
+        return deadline == null ? Long.MAX_VALUE : deadline - System.nanoTime();
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.odkxodata.service;
+
+import org.apache.olingo.server.api.uri.queryoption.search.SearchBinary;
+import org.apache.olingo.server.api.uri.queryoption.search.SearchBinaryOperatorKind;
+import org.apache.olingo.server.api.uri.queryoption.search.SearchExpression;
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.sync.client.SyncClient;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Class used as an inverted index over the string columns of a table's rows, which maps each token to the ids of the
+ * rows containing it. Rows are added, replaced and removed one at a time, so that the index can follow the table's
+ * changes without being rebuilt. The class is not thread-safe, it is guarded by the cached rows it indexes
+ */
+public class RowSearchIndex {
+    private static final Pattern TOKEN_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    // the string columns whose values are indexed
+    private final Set<String> columns;
+    // the map that maps from token to the ids of the rows containing it
+    private final Map<String, Set<String>> tokenToRowIds = new HashMap<>();
+    // the map that maps from row id to the row's tokens, used to remove a row's old tokens
+    private final Map<String, Set<String>> rowIdToTokens = new HashMap<>();
+
+    public RowSearchIndex(Set<String> columns) {
+        this.columns = columns;
+    }
+
+    /**
+     * Add a row to the index, replacing its previous version if there is one
+     * @param rowId the row identifier
+     * @param row the row in the type of JSONObject
+     * @throws JSONException
+     */
+    public void update(String rowId, JSONObject row) throws JSONException {
+        remove(rowId);
+        Set<String> tokens = new HashSet<>();
+        JSONArray rowValues = row.getJSONArray(SyncClient.ORDERED_COLUMNS_DEF);
+        for (int i = 0; i < rowValues.size(); i++) {
+            JSONObject rowKV = rowValues.getJSONObject(i);
+            Object value = rowKV.get("value");
+            if (value != null && columns.contains(rowKV.getString("column"))) {
+                tokens.addAll(tokenize(value.toString()));
+            }
+        }
+        for (String token : tokens) {
+            tokenToRowIds.computeIfAbsent(token, k -> new HashSet<>()).add(rowId);
+        }
+        rowIdToTokens.put(rowId, tokens);
+    }
+
+    /**
+     * Remove a row from the index
+     * @param rowId the row identifier
+     */
+    public void remove(String rowId) {
+        Set<String> tokens = rowIdToTokens.remove(rowId);
+        if (tokens == null) {
+            return;
+        }
+        for (String token : tokens) {
+            Set<String> rowIds = tokenToRowIds.get(token);
+            rowIds.remove(rowId);
+            if (rowIds.isEmpty()) {
+                tokenToRowIds.remove(token);
+            }
+        }
+    }
+
+    /**
+     * Return the ids of the rows containing all tokens of the given search term
+     * @param term a search term, which may consist of several tokens (e.g. a phrase)
+     * @return a new set with the ids of the matching rows
+     */
+    public Set<String> lookup(String term) {
+        Set<String> result = null;
+        for (String token : tokenize(term)) {
+            Set<String> rowIds = tokenToRowIds.getOrDefault(token, Collections.emptySet());
+            if (result == null) {
+                result = new HashSet<>(rowIds);
+            } else {
+                result.retainAll(rowIds);
+            }
+        }
+        return result == null ? new HashSet<>() : result;
+    }
+
+    /**
+     * Return the ids of the rows matching a $search expression, where terms are looked up in the index and combined
+     * with AND, OR and NOT as set operations
+     * @param searchExpression the parsed $search expression or a part of it
+     * @return a new set with the ids of the matching rows
+     */
+    public Set<String> search(SearchExpression searchExpression) {
+        if (searchExpression.isSearchTerm()) {
+            return lookup(searchExpression.asSearchTerm().getSearchTerm());
+        }
+        if (searchExpression.isSearchUnary()) {
+            // NOT is the only unary operator
+            Set<String> rowIds = getRowIds();
+            rowIds.removeAll(lookup(searchExpression.asSearchUnary().getOperand().getSearchTerm()));
+            return rowIds;
+        }
+        SearchBinary searchBinary = searchExpression.asSearchBinary();
+        Set<String> rowIds = search(searchBinary.getLeftOperand());
+        Set<String> rightRowIds = search(searchBinary.getRightOperand());
+        if (searchBinary.getOperator() == SearchBinaryOperatorKind.OR) {
+            rowIds.addAll(rightRowIds);
+        } else {
+            rowIds.retainAll(rightRowIds);
+        }
+        return rowIds;
+    }
+
+    /**
+     * Return the ids of all indexed rows
+     * @return a new set with the ids of all rows
+     */
+    public Set<String> getRowIds() {
+        return new HashSet<>(rowIdToTokens.keySet());
+    }
+
+    /**
+     * Split a text into lower-case tokens of letters and digits
+     * @param text the text to split
+     * @return the text's tokens
+     */
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        for (String token : TOKEN_SEPARATOR.split(text.toLowerCase(Locale.ROOT))) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,428 @@
+package com.example.odkxodata.service;
+
+import lombok.extern.java.Log;
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.sync.client.SyncClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class used to push row-level change notifications of tables to subscribed clients as Server-Sent Events. Each tenant
+ * has its own background poller, which checks the dataETag of every subscribed table with the tenant's change feed
+ * service account, and only when it changed fetches the changed rows (getAllDataChangesSince) once per distinct
+ * subscriber credentials, since the Sync server only returns the rows a user may access. So the load on the Sync
+ * servers does not grow with the number of subscribers of the same user, and a slow Sync server only delays its own
+ * tenant. The poller keeps its own SyncClients, so that subscriptions never evict the SyncClients and cached rows of
+ * the tenant's users. Each poll sends a single event with all changed rows per subscriber, the events are queued per
+ * subscriber and sent by a shared pool of sender threads, and a subscriber whose queue is full is dropped, so that a
+ * slow client cannot stall the poller or the other subscribers
+ */
+@Component
+@Log
+public class SyncChangeFeed {
+    // name of the events that carry the rows changed since the previous event
+    private static final String CHANGES_EVENT = "changes";
+
+    // time between two polls of a table's dataETag
+    private final long pollIntervalMillis;
+    // time after which a subscription is closed, clients are expected to reconnect
+    private final long subscriptionTimeoutMillis;
+    // maximum number of open subscriptions over all tenants
+    private final int maxSubscribers;
+    // time a poll of a table may wait for its Sync server
+    private final long requestTimeoutMillis;
+    // number of threads sending events to subscribers
+    private final int senderThreads;
+    // maximum number of events waiting to be sent to a single subscriber
+    private final int queueSize;
+
+    // the map that maps from tenant name to the tenant's poller and subscriptions
+    private final Map<String, TenantFeeds> tenantFeeds = new ConcurrentHashMap<>();
+    private final AtomicInteger subscribers = new AtomicInteger();
+    private ExecutorService sender;
+
+    public SyncChangeFeed(@Value("${odk.changes.pollInterval:1000}") long pollIntervalMillis,
+                          @Value("${odk.changes.timeout:1800000}") long subscriptionTimeoutMillis,
+                          @Value("${odk.changes.maxSubscribers:1000}") int maxSubscribers,
+                          @Value("${odk.request.timeout:30000}") long requestTimeoutMillis,
+                          @Value("${odk.changes.senderThreads:4}") int senderThreads,
+                          @Value("${odk.changes.queueSize:256}") int queueSize) {
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.subscriptionTimeoutMillis = subscriptionTimeoutMillis;
+        this.maxSubscribers = maxSubscribers;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.senderThreads = senderThreads;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Start the sender threads, the pollers are started with the first subscription of their tenant
+     */
+    @PostConstruct
+    public void start() {
+        sender = Executors.newFixedThreadPool(senderThreads, daemonThreadFactory("sync-change-sender"));
+    }
+
+    /**
+     * Stop the pollers and sender threads and close all subscriptions
+     */
+    @PreDestroy
+    public void stop() {
+        for (TenantFeeds feeds : tenantFeeds.values()) {
+            feeds.poller.shutdownNow();
+            for (TableFeed feed : feeds.feeds.values()) {
+                for (SubscriberGroup group : feed.groups.values()) {
+                    for (Subscriber subscriber : group.subscribers) {
+                        subscriber.emitter.complete();
+                    }
+                }
+            }
+        }
+        sender.shutdownNow();
+    }
+
+    /**
+     * Return whether the changes of a tenant's tables can be subscribed to
+     * @param tenant the tenant owning the tables
+     * @return true if the tenant has a change feed service account
+     */
+    public boolean isEnabled(SyncTenant tenant) {
+        return tenant.getConfig().getChangesUsername() != null;
+    }
+
+    /**
+     * Subscribe to the changes of a tenant's table. The subscriber is told about all changes since the given
+     * dataETag, or since an earlier one if other subscribers of the same credentials are behind
+     * @param tenant the tenant owning the table, which must have a change feed service account
+     * @param tableId the table identifier or name
+     * @param credentials the subscriber's credentials in the form of [username, password]
+     * @param dataETag the table's dataETag when the subscriber's credentials were checked
+     * @return the SseEmitter that the changes are sent to, or null if there are too many subscriptions
+     */
+    public SseEmitter subscribe(SyncTenant tenant, String tableId, String[] credentials, String dataETag) {
+        if (subscribers.incrementAndGet() > maxSubscribers) {
+            subscribers.decrementAndGet();
+            return null;
+        }
+        Subscriber subscriber = new Subscriber(createEmitter(), queueSize);
+        TenantFeeds feeds = tenantFeeds.computeIfAbsent(tenant.getName(), name -> new TenantFeeds(tenant));
+        List<String> key = Arrays.asList(credentials.clone());
+        // adding the subscriber within compute keeps the poller from dropping the feed in the meantime
+        TableFeed feed = feeds.feeds.compute(tableId, (k, f) -> {
+            TableFeed tableFeed = f == null ? new TableFeed(tableId) : f;
+            tableFeed.groups.computeIfAbsent(key, c -> new SubscriberGroup(credentials.clone(), dataETag))
+                    .subscribers.add(subscriber);
+            return tableFeed;
+        });
+        Runnable unsubscribe = () -> {
+            SubscriberGroup group = feed.groups.get(key);
+            if (group != null && group.subscribers.remove(subscriber)) {
+                subscribers.decrementAndGet();
+            }
+        };
+        subscriber.emitter.onCompletion(unsubscribe);
+        subscriber.emitter.onTimeout(unsubscribe);
+        subscriber.emitter.onError(e -> unsubscribe.run());
+        log.info("Subscribe to changes of table " + tableId + " of tenant: " + tenant.getName());
+        return subscriber.emitter;
+    }
+
+    /**
+     * Create the emitter of a new subscription
+     * @return the SseEmitter, which times out after the subscription timeout
+     */
+    SseEmitter createEmitter() {
+        return new SseEmitter(subscriptionTimeoutMillis);
+    }
+
+    /**
+     * Create the SyncDataConverter the poller of a tenant works with. It shares the tenant's limiter, but keeps its
+     * own SyncClient per subscriber credentials and for the service account
+     * @param tenant the tenant whose tables are polled
+     * @return a new SyncDataConverter
+     */
+    SyncDataConverter createSyncDataConverter(SyncTenant tenant) {
+        SyncTenantProperties.TenantConfig config = tenant.getConfig();
+        return new SyncDataConverter(config.getUrl(), config.getAppId(), tenant.getLimiter(), maxSubscribers + 1,
+                config.getTablesTtl(), config.getAttachmentTimeout());
+    }
+
+    /**
+     * Poll every subscribed table of a tenant once
+     * @param tenant the tenant whose tables are polled
+     */
+    void poll(SyncTenant tenant) {
+        TenantFeeds feeds = tenantFeeds.get(tenant.getName());
+        if (feeds != null) {
+            poll(feeds);
+        }
+    }
+
+    /**
+     * Poll every table of a tenant that has subscribers, and forget the tables that lost all of them
+     * @param feeds the tenant's subscriptions
+     */
+    private void poll(TenantFeeds feeds) {
+        for (String tableId : feeds.feeds.keySet()) {
+            TableFeed feed = feeds.feeds.computeIfPresent(tableId, (k, f) -> {
+                f.groups.values().removeIf(g -> g.subscribers.isEmpty());
+                return f.groups.isEmpty() ? null : f;
+            });
+            if (feed == null) {
+                continue;
+            }
+            RequestDeadline.start(requestTimeoutMillis);
+            try {
+                poll(feeds, feed);
+            } catch (RuntimeException e) {
+                // e.g. the Sync server is overloaded, the table is polled again next time
+                log.warning("Failed to poll changes of table " + feed.tableId + ": " + e);
+            } finally {
+                RequestDeadline.clear();
+            }
+        }
+    }
+
+    /**
+     * Check a table's dataETag with the service account, and send the rows that changed since the previous event to
+     * the table's subscribers, fetched with each subscriber's own credentials
+     * @param feeds the tenant's subscriptions and the poller's SyncDataConverter
+     * @param feed the table's subscriptions
+     */
+    private void poll(TenantFeeds feeds, TableFeed feed) {
+        SyncDataConverter syncDataConverter = feeds.syncDataConverter;
+        SyncTenantProperties.TenantConfig config = feeds.tenant.getConfig();
+        String dataETag = null;
+        syncDataConverter.initSyncClient(new String[]{config.getChangesUsername(), config.getChangesPassword()});
+        try {
+            if (keepSyncClient(syncDataConverter)) {
+                dataETag = syncDataConverter.getDataETag(feed.tableId);
+            }
+        } finally {
+            syncDataConverter.releaseSyncClient();
+        }
+        if (dataETag == null) {
+            return;
+        }
+        for (SubscriberGroup group : feed.groups.values()) {
+            if (dataETag.equals(group.dataETag)) {
+                continue;
+            }
+            syncDataConverter.initSyncClient(group.credentials);
+            try {
+                if (keepSyncClient(syncDataConverter)) {
+                    poll(feed, group, syncDataConverter);
+                }
+            } catch (RuntimeException e) {
+                log.warning("Failed to poll changes of table " + feed.tableId + ": " + e);
+            } finally {
+                syncDataConverter.releaseSyncClient();
+            }
+        }
+    }
+
+    /**
+     * Keep the poller's SyncClient selected by the current thread, retrieving the tables first if it is new, since
+     * only a SyncClient whose credentials proved valid is kept
+     * @param syncDataConverter the poller's SyncDataConverter
+     * @return true if the tables could be retrieved, i.e. the SyncClient can be used
+     */
+    private static boolean keepSyncClient(SyncDataConverter syncDataConverter) {
+        if (syncDataConverter.getTables().isEmpty()) {
+            return false;
+        }
+        syncDataConverter.keepSyncClient();
+        return true;
+    }
+
+    /**
+     * Queue a single event with the rows of a table that changed since the group's previous event for the group's
+     * subscribers
+     * @param feed the table's subscriptions
+     * @param group the subscribers sharing the same credentials
+     * @param syncDataConverter the poller's SyncDataConverter, with the group's SyncClient selected
+     */
+    private void poll(TableFeed feed, SubscriberGroup group, SyncDataConverter syncDataConverter) {
+        SyncDataConverter.TableChanges changes = syncDataConverter.getChangesSince(feed.tableId, group.dataETag);
+        if (changes == null) {
+            return;
+        }
+        group.dataETag = changes.getDataEtag();
+        JSONArray rows = changes.getRows();
+        JSONArray data = new JSONArray();
+        for (int i = 0; i < rows.size(); i++) {
+            try {
+                data.add(formatChange(rows.getJSONObject(i)));
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+        // e.g. only rows changed that the group's credentials may not access
+        if (data.isEmpty()) {
+            return;
+        }
+        String text = data.toString();
+        for (Subscriber subscriber : group.subscribers) {
+            // an event builder can only be sent once
+            send(subscriber, SseEmitter.event()
+                    .name(CHANGES_EVENT)
+                    .id(group.dataETag)
+                    .data(text, MediaType.APPLICATION_JSON));
+        }
+    }
+
+    /**
+     * Queue an event for a subscriber and make sure a sender thread drains the subscriber's queue. A subscriber
+     * whose queue is full is too slow to keep up and is dropped
+     * @param subscriber the subscriber
+     * @param event the event to send
+     */
+    private void send(Subscriber subscriber, SseEmitter.SseEventBuilder event) {
+        if (!subscriber.queue.offer(event)) {
+            log.warning("Drop slow subscriber of changes");
+            subscriber.queue.clear();
+            // the emitter's callbacks remove the subscriber
+            subscriber.emitter.complete();
+            return;
+        }
+        schedule(subscriber);
+    }
+
+    /**
+     * Let a sender thread drain a subscriber's queue, unless one is already doing so
+     * @param subscriber the subscriber
+     */
+    private void schedule(Subscriber subscriber) {
+        if (subscriber.sending.compareAndSet(false, true)) {
+            try {
+                sender.execute(() -> drain(subscriber));
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                subscriber.sending.set(false);
+            }
+        }
+    }
+
+    /**
+     * Send the queued events of a subscriber, by at most one sender thread at a time
+     * @param subscriber the subscriber
+     */
+    private void drain(Subscriber subscriber) {
+        SseEmitter.SseEventBuilder event;
+        while ((event = subscriber.queue.poll()) != null) {
+            try {
+                subscriber.emitter.send(event);
+            } catch (IOException | IllegalStateException e) {
+                // the client is gone, the emitter's callbacks remove it
+                subscriber.queue.clear();
+                subscriber.emitter.completeWithError(e);
+            }
+        }
+        subscriber.sending.set(false);
+        // an event queued after the queue was found empty, but before the flag was cleared
+        if (!subscriber.queue.isEmpty()) {
+            schedule(subscriber);
+        }
+    }
+
+    /**
+     * Format a changed row as an element of the data of a changes event
+     * @param row the changed row in the type of JSONObject
+     * @return a JSONObject with the row's id, rowETag and whether it was deleted
+     * @throws JSONException
+     */
+    private static JSONObject formatChange(JSONObject row) throws JSONException {
+        JSONObject change = new JSONObject();
+        change.put("id", row.getString(SyncClient.ID_JSON));
+        change.put("rowETag", row.optString(SyncClient.ROW_ETAG_JSON, null));
+        change.put("deleted", row.optBoolean(SyncClient.DELETED_JSON, false));
+        return change;
+    }
+
+    private static ThreadFactory daemonThreadFactory(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Store the subscriptions of a tenant's tables and the tenant's poller
+     */
+    private class TenantFeeds {
+        private final SyncTenant tenant;
+        // the map that maps from table id to the table's subscriptions
+        private final Map<String, TableFeed> feeds = new ConcurrentHashMap<>();
+        // only used by the poller, which is a single thread
+        private final SyncDataConverter syncDataConverter;
+        private final ScheduledExecutorService poller;
+
+        TenantFeeds(SyncTenant tenant) {
+            this.tenant = tenant;
+            this.syncDataConverter = createSyncDataConverter(tenant);
+            this.poller = Executors.newSingleThreadScheduledExecutor(
+                    daemonThreadFactory("sync-change-feed-" + tenant.getName()));
+            poller.scheduleWithFixedDelay(() -> poll(this), pollIntervalMillis, pollIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Store the subscriptions of a table
+     */
+    private static class TableFeed {
+        private final String tableId;
+        // the map that maps from credentials to the subscribers using them
+        private final Map<List<String>, SubscriberGroup> groups = new ConcurrentHashMap<>();
+
+        TableFeed(String tableId) {
+            this.tableId = tableId;
+        }
+    }
+
+    /**
+     * Store the subscribers of a table sharing the same credentials, and the dataETag of the changes they were last
+     * notified of, or of their subscription
+     */
+    private static class SubscriberGroup {
+        private final String[] credentials;
+        private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+        // only accessed by the poller, except for its initial value
+        private volatile String dataETag;
+
+        SubscriberGroup(String[] credentials, String dataETag) {
+            this.credentials = credentials;
+            this.dataETag = dataETag;
+        }
+    }
+
+    /**
+     * Store a subscription and the events waiting to be sent to it
+     */
+    private static class Subscriber {
+        private final SseEmitter emitter;
+        private final BlockingQueue<SseEmitter.SseEventBuilder> queue;
+        // whether a sender thread is draining the queue
+        private final AtomicBoolean sending = new AtomicBoolean();
+
+        Subscriber(SseEmitter emitter, int queueSize) {
+            this.emitter = emitter;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+        }
+    }
+}
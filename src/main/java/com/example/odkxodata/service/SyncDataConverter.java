@@ -5,46 +5,123 @@ import lombok.extern.java.Log;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind;
 import org.apache.olingo.commons.api.edm.FullQualifiedName;
+import org.apache.olingo.server.api.uri.queryoption.search.SearchExpression;
 import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException;
 import org.apache.wink.json4j.JSONObject;
 import org.opendatakit.sync.client.SyncClient;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.stereotype.Service;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Class used to initialize a SyncClient and get related table data through Sync Protocol. It will convert and reformat
- * the data based on needs
+ * the data based on needs. Each tenant owns its own instance, and all calls to the Sync server go through the
+ * tenant's AdaptiveConcurrencyLimiter. The tenant keeps one SyncClient per user (credentials), and each thread works
+ * with the SyncClient it selected through initSyncClient, so that concurrent requests of different users never share
+ * a client
  */
-@Service
 @Log
 public class SyncDataConverter {
-    @Value("${odk.server.appId}")
-    private String appId;
-    @Value("${odk.server.url}")
-    private String aggUrl;
+    private final String appId;
+    private final String aggUrl;
+    private final AdaptiveConcurrencyLimiter limiter;
+    // time after which the tables are retrieved again, to notice new tables and changed schemaETags
+    private final long tablesTtlMillis;
+    // time an attachment download may take, which depends on the attachment's size rather than on congestion
+    private final long attachmentTimeoutMillis;
 
-    private String[] credentials;
-    private SyncClient wc;
-    public List<TableInfo> tableInfos;
+    // the map that maps from credentials to their SyncClient session, least recently used first
+    private final Map<List<String>, SyncSession> sessions;
+    // the session of the credentials the current thread works with
+    private final ThreadLocal<SyncSession> currentSession = new ThreadLocal<>();
+    // the tenant's tables, which all sessions share like the Entity Data Model built from them. Replaced as a
+    // whole, so that readers never see it half-filled
+    private volatile List<TableInfo> tableInfos = new ArrayList<>();
+    // System.nanoTime() when the tableInfos were retrieved
+    private volatile long tableInfosNanos;
+    // whether a session is retrieving the tables again after the TTL
+    private final AtomicBoolean refreshingTables = new AtomicBoolean();
+
+    public SyncDataConverter(String aggUrl, String appId, AdaptiveConcurrencyLimiter limiter, int maxSyncClients,
+                             long tablesTtlMillis, long attachmentTimeoutMillis) {
+        this.aggUrl = aggUrl;
+        this.appId = appId;
+        this.limiter = limiter;
+        this.tablesTtlMillis = tablesTtlMillis;
+        this.attachmentTimeoutMillis = attachmentTimeoutMillis;
+        this.sessions = new LinkedHashMap<List<String>, SyncSession>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<String>, SyncSession> eldest) {
+                // an evicted client is not closed, since a request may still be using it
+                return size() > maxSyncClients;
+            }
+        };
+    }
 
     /**
-     * Initialize the SyncClient based on the given credentials information
+     * Select the SyncClient of the given credentials for the current thread, initializing it if there is none yet.
+     * The thread keeps working with it until releaseSyncClient is called. A new SyncClient is only kept for further
+     * requests if keepSyncClient is called once its credentials proved valid
      * @param credentials user credentials details in the form of [username, password]
      */
     public void initSyncClient(String[] credentials) {
-        // same credentials, no need to initialize a new SyncClient
-        if (Arrays.equals(this.credentials,credentials)) {
-            return;
-        }
-        wc = new SyncClient();
-        String absolutePathOfTestFiles = "testfiles/test/";
-        int batchSize = 1000;
-        tableInfos = new ArrayList<>();
+        List<String> key = Arrays.asList(credentials.clone());
+        SyncSession session;
+        synchronized (sessions) {
+            session = sessions.get(key);
+        }
+        if (session == null) {
+            session = new SyncSession(key, createSyncClient(credentials));
+        }
+        currentSession.set(session);
+    }
+
+    /**
+     * Keep the SyncClient selected by the current thread for further requests of the same credentials. Only a
+     * SyncClient that retrieved the tables is kept, so that invalid credentials cannot evict the SyncClients and
+     * cached rows of real users
+     * @return true if the SyncClient was kept now, i.e. the credentials were not used recently
+     */
+    public boolean keepSyncClient() {
+        SyncSession session = session();
+        if (session.kept || !session.validated) {
+            return false;
+        }
+        synchronized (sessions) {
+            // a concurrent request of the same user may have been first
+            if (sessions.get(session.key) != null) {
+                return false;
+            }
+            sessions.put(session.key, session);
+            session.kept = true;
+        }
+        return true;
+    }
+
+    /**
+     * Release the SyncClient selected by the current thread, closing it if it was not kept
+     */
+    public void releaseSyncClient() {
+        SyncSession session = currentSession.get();
+        currentSession.remove();
+        if (session != null && !session.kept) {
+            session.wc.close();
+        }
+    }
+
+    /**
+     * Create a SyncClient for the given credentials
+     * @param credentials user credentials details in the form of [username, password]
+     * @return the SyncClient
+     */
+    private SyncClient createSyncClient(String[] credentials) {
+        SyncClient wc = new SyncClient();
         try {
             URL url = new URL(aggUrl);
             String host = url.getHost();
@@ -56,7 +133,19 @@ public class SyncDataConverter {
         catch (Exception e) {
             e.printStackTrace();
         }
-        this.credentials = credentials;
+        return wc;
+    }
+
+    /**
+     * Return the session selected by the current thread
+     * @return the current thread's SyncSession
+     */
+    private SyncSession session() {
+        SyncSession session = currentSession.get();
+        if (session == null) {
+            throw new IllegalStateException("initSyncClient must be called before calling the Sync server");
+        }
+        return session;
     }
 
     /**
@@ -68,8 +157,9 @@ public class SyncDataConverter {
         String tableId = tableInfo.getTableId();
         String tableSchemaETag = tableInfo.getSchemaEtag();
         Map<String, FullQualifiedName> colNameToODataTypeMap = new TreeMap<>();
+        SyncClient wc = session().wc;
         try {
-            JSONObject tableDef = wc.getTableDefinition(aggUrl, appId, tableId, tableSchemaETag);
+            JSONObject tableDef = limiter.call(() -> wc.getTableDefinition(aggUrl, appId, tableId, tableSchemaETag));
             JSONArray tableColsDef = tableDef.getJSONArray(SyncClient.ORDERED_COLUMNS_DEF);
             // record parent's name and its single child's name
             // this is because on SyncEndpoint web ui, we show parent's name with the single child's type
@@ -79,6 +169,12 @@ public class SyncDataConverter {
                 String colType = colDef.getString("elementType");
                 String colName = colDef.getString("elementKey");
                 String childElements = colDef.getString("listChildElementKeys");
+                // a row attachment is an element with uriFragment and contentType children, which are still
+                // listed as separate columns. Record the element itself as a stream so that it can be served
+                if (colType.equals("mimeUri")) {
+                    colNameToODataTypeMap.put(colName, EdmPrimitiveTypeKind.Stream.getFullQualifiedName());
+                    continue;
+                }
                 // ignore current element if multiple child element keys exist
                 if (childElements.indexOf(",") >= 0) {
                     continue;
@@ -125,61 +221,388 @@ public class SyncDataConverter {
     }
 
     /**
-     * Return a list of TableInfo that represents current client's all tables' information(tableId and schemaEtag)
-     * @return a list of TableInfo
+     * Return a list of TableInfo that represents all tables' information(tableId and schemaEtag) of the tenant. The
+     * list is shared by all sessions and retrieved again by a single session once it is older than the TTL, so that
+     * schema changes are noticed by all users at once. A session whose credentials have not proved valid yet always
+     * retrieves the tables itself
+     * @return a list of TableInfo, which is empty if the current session could not retrieve them yet
      */
     public List<TableInfo> getTables() {
-        // directly return the previous result if there is any
-        if (!this.tableInfos.isEmpty()) {
-            return this.tableInfos;
+        SyncSession session = session();
+        List<TableInfo> currentTableInfos = tableInfos;
+        boolean refreshing = false;
+        if (session.validated && !currentTableInfos.isEmpty()) {
+            // directly return the previous result if there is a recent one or another session is refreshing it
+            if (System.nanoTime() - tableInfosNanos < tablesTtlMillis * 1_000_000L
+                    || !refreshingTables.compareAndSet(false, true)) {
+                return currentTableInfos;
+            }
+            refreshing = true;
         }
         log.info("Get all tables' tableId and schemaEtag");
+        SyncClient wc = session.wc;
         List<TableInfo> newTableInfos = new ArrayList<>();
         try {
-            JSONObject tablesInfo = wc.getTables(aggUrl, appId);
+            JSONObject tablesInfo = limiter.call(() -> wc.getTables(aggUrl, appId));
             JSONArray tables = tablesInfo.getJSONArray(SyncClient.TABLES_JSON);
             for (int i = 0; i < tables.size(); i++) {
                 JSONObject table = tables.getJSONObject(i);
                 newTableInfos.add(new TableInfo(table.getString(SyncClient.TABLE_ID_JSON), table.getString(SyncClient.SCHEMA_ETAG_JSON)));
             }
-            this.tableInfos = newTableInfos;
+            tableInfosNanos = System.nanoTime();
+            tableInfos = newTableInfos;
+            session.validated = true;
+            return newTableInfos;
         } catch (ClientProtocolException e) {
             e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
         } catch (JSONException e) {
             e.printStackTrace();
+        } finally {
+            if (refreshing) {
+                refreshingTables.set(false);
+            }
         }
-        return newTableInfos;
+        // the previous tables if they could not be retrieved again, but never for unproven credentials
+        return session.validated ? tableInfos : new ArrayList<>();
     }
 
     /**
-     * Return all rows of a table with given tableId in a JSONArray
+     * Return all rows of a table with given tableId in a JSONArray. The rows are cached per user, since the Sync
+     * server only returns the rows a user may access. They are fetched only if the table's dataETag changed since
+     * they were last fetched, and then only the changed rows are fetched
      * @param tableId the table identifier or name
      * @return a JSONArray with all rows of a table
      */
     public JSONArray getRows(String tableId) {
+        CachedRows cachedRows = getCachedRows(tableId);
+        return cachedRows == null ? null : cachedRows.getRows();
+    }
+
+    /**
+     * Return the rows of a table matching a $search expression, found through the table's search index. The index
+     * and the rows are taken from the same version of the cached rows, so they always agree
+     * @param tableId the table identifier or name
+     * @param columns the string columns to index
+     * @param searchExpression the parsed $search expression
+     * @return a JSONArray with the matching rows in table order, or null if the table's rows could not be retrieved
+     */
+    public JSONArray searchRows(String tableId, Set<String> columns, SearchExpression searchExpression) {
+        CachedRows cachedRows = getCachedRows(tableId);
+        if (cachedRows == null) {
+            return null;
+        }
+        try {
+            return cachedRows.search(columns, searchExpression);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Return the cached rows of a table with given tableId after bringing them up to date with the table's dataETag
+     * @param tableId the table identifier or name
+     * @return the table's CachedRows, or null if the table does not exist or its rows could not be retrieved
+     */
+    private CachedRows getCachedRows(String tableId) {
+        String schemaETag = getSchemaETag(tableId);
+        if (schemaETag == null) {
+            return null;
+        }
+        SyncSession session = session();
+        CachedRows cachedRows = session.tableIdToRowsMap.get(tableId);
+        // only cached rows need the dataETag check, a cold read gets the dataETag along with the rows
+        if (cachedRows != null && schemaETag.equals(cachedRows.getSchemaEtag())) {
+            String dataETag = getDataETag(tableId);
+            if (dataETag != null) {
+                synchronized (cachedRows) {
+                    if (dataETag.equals(cachedRows.getDataEtag()) || applyChanges(tableId, cachedRows)) {
+                        return cachedRows;
+                    }
+                }
+            }
+        }
+        // concurrent cold reads of the same table, e.g. a request and the hot table prefetch, share a single full fetch
+        synchronized (session.tableIdToFetchLockMap.computeIfAbsent(tableId, id -> new Object())) {
+            CachedRows fetchedRows = session.tableIdToRowsMap.get(tableId);
+            if (fetchedRows != null && fetchedRows != cachedRows && schemaETag.equals(fetchedRows.getSchemaEtag())) {
+                return fetchedRows;
+            }
+            return fetchRows(session, tableId, schemaETag);
+        }
+    }
+
+    /**
+     * Fetch all rows of a table and cache them if the Sync server returned their dataETag
+     * @param session the session to fetch the rows with and cache them in
+     * @param tableId the table identifier or name
+     * @param schemaETag the table's schemaETag
+     * @return the table's CachedRows, or null if its rows could not be retrieved
+     */
+    private CachedRows fetchRows(SyncSession session, String tableId, String schemaETag) {
         log.info("Get all rows of a table with tableId: " + tableId);
-        String tableSchemaETag = null;
-        for (TableInfo tableInfo : tableInfos) {
-            if (tableInfo.getTableId().equals(tableId)) {
-                tableSchemaETag = tableInfo.getSchemaEtag();
-                break;
+        SyncClient wc = session.wc;
+        try {
+            // the latency of a full fetch depends on the table's size, so it says nothing about congestion
+            JSONObject tableData = limiter.call(() -> {
+                // the SyncClient reports any failure to get the rows as null
+                JSONObject rows = wc.getRows(aggUrl, appId, tableId, schemaETag, null, null);
+                if (rows == null) {
+                    throw new IOException("Rows of " + tableId + " could not be retrieved");
+                }
+                return rows;
+            }, false);
+            String dataETag = tableData.has(SyncClient.DATA_ETAG_JSON) && !tableData.isNull(SyncClient.DATA_ETAG_JSON)
+                    ? tableData.getString(SyncClient.DATA_ETAG_JSON) : null;
+            CachedRows newCachedRows = new CachedRows(schemaETag, dataETag, tableData.getJSONArray(SyncClient.ROWS_STR));
+            if (dataETag != null) {
+                session.tableIdToRowsMap.put(tableId, newCachedRows);
+            } else {
+                session.tableIdToRowsMap.remove(tableId);
             }
+            return newCachedRows;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (JSONException e) {
+            e.printStackTrace();
         }
-        if (tableSchemaETag == null) {
+        return null;
+    }
+
+    /**
+     * Fetch the rows changed since the cached rows' dataETag and apply them to the cached rows
+     * @param tableId the table identifier or name
+     * @param cachedRows the table's cached rows, the caller must hold its lock
+     * @return true if the changes were applied, false if the table has to be fetched again
+     */
+    private boolean applyChanges(String tableId, CachedRows cachedRows) {
+        TableChanges changes = getChangesSince(tableId, cachedRows.getSchemaEtag(), cachedRows.getDataEtag());
+        if (changes == null) {
+            return false;
+        }
+        try {
+            cachedRows.apply(changes.getRows());
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return false;
+        }
+        cachedRows.setDataEtag(changes.getDataEtag());
+        return true;
+    }
+
+    /**
+     * Return the rows of a table with given tableId that changed (were created, updated or deleted) since the
+     * given dataETag
+     * @param tableId the table identifier or name
+     * @param dataETag the dataETag to return the changes since
+     * @return the changed rows and the dataETag they are up to date with, or null if the table does not exist or the
+     * changes could not be retrieved
+     */
+    public TableChanges getChangesSince(String tableId, String dataETag) {
+        String schemaETag = getSchemaETag(tableId);
+        if (schemaETag == null) {
             return null;
         }
+        return getChangesSince(tableId, schemaETag, dataETag);
+    }
+
+    /**
+     * Return the rows of a table that changed since the given dataETag, following the result pages
+     * @param tableId the table identifier or name
+     * @param schemaETag the table's schemaETag
+     * @param dataETag the dataETag to return the changes since
+     * @return the changed rows and the dataETag they are up to date with, or null if they could not be retrieved
+     */
+    private TableChanges getChangesSince(String tableId, String schemaETag, String dataETag) {
+        log.info("Get changed rows of a table with tableId: " + tableId);
+        SyncClient wc = session().wc;
         try {
-            JSONObject tableData = wc.getRows(aggUrl, appId,tableId, tableSchemaETag, null,null);
-            JSONArray rows = tableData.getJSONArray(SyncClient.ROWS_STR);
-            return rows;
+            JSONArray rows = new JSONArray();
+            String cursor = null;
+            do {
+                String sinceDataETag = dataETag;
+                String pageCursor = cursor;
+                JSONObject changes = limiter.call(() -> wc.getAllDataChangesSince(aggUrl, appId, tableId,
+                        schemaETag, sinceDataETag, pageCursor, null), false);
+                rows.addAll(changes.getJSONArray(SyncClient.ROWS_STR));
+                if (changes.has(SyncClient.DATA_ETAG_JSON) && !changes.isNull(SyncClient.DATA_ETAG_JSON)) {
+                    dataETag = changes.getString(SyncClient.DATA_ETAG_JSON);
+                }
+                cursor = changes.optBoolean(SyncClient.HAS_MORE_RESULTS_JSON, false)
+                        ? changes.optString(SyncClient.WEB_SAFE_RESUME_CURSOR_JSON, null) : null;
+            } while (cursor != null);
+            return new TableChanges(rows, dataETag);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Return a single row of a table with given tableId and rowId
+     * @param tableId the table identifier or name
+     * @param rowId the row identifier
+     * @return a JSONObject with the row, or null if the table does not exist or the row could not be retrieved
+     */
+    public JSONObject getRow(String tableId, String rowId) {
+        log.info("Get row " + rowId + " of a table with tableId: " + tableId);
+        String schemaETag = getSchemaETag(tableId);
+        if (schemaETag == null) {
+            return null;
+        }
+        SyncClient wc = session().wc;
+        try {
+            return limiter.call(() -> wc.getRow(aggUrl, appId, tableId, schemaETag, rowId));
+        } catch (IOException e) {
+            e.printStackTrace();
         } catch (JSONException e) {
             e.printStackTrace();
         }
         return null;
     }
 
+    /**
+     * Return the manifest entry of a row's attachment, which holds the attachment's contentLength, contentType and
+     * md5hash as known by the Sync server
+     * @param tableId the table identifier or name
+     * @param rowId the row identifier
+     * @param relativePath the attachment's path relative to the row (its uriFragment)
+     * @return the manifest entry, or null if the table or the attachment does not exist
+     * @throws IOException if the manifest could not be retrieved
+     * @throws JSONException if the Sync server did not answer with a manifest (e.g. an error page)
+     */
+    public JSONObject getAttachmentManifestEntry(String tableId, String rowId, String relativePath)
+            throws IOException, JSONException {
+        String schemaETag = getSchemaETag(tableId);
+        if (schemaETag == null) {
+            return null;
+        }
+        SyncClient wc = session().wc;
+        JSONObject manifest = limiter.call(() -> wc.getManifestForRow(aggUrl, appId, tableId, schemaETag, rowId));
+        JSONArray files = manifest.getJSONArray(SyncClient.FILES_STR);
+        for (int i = 0; i < files.size(); i++) {
+            JSONObject file = files.getJSONObject(i);
+            if (relativePath.equals(file.getString(SyncClient.FILENAME_STR))) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Download a row's attachment into a temporary file and return the file. The file is spooled to disk instead of
+     * the heap, the caller is responsible for deleting it. SyncClient writes whatever the Sync server answers, so
+     * the download is only accepted if its length matches the attachment's manifest entry
+     * @param tableId the table identifier or name
+     * @param rowId the row identifier
+     * @param relativePath the attachment's path relative to the row (its uriFragment)
+     * @param contentLength the attachment's length from its manifest entry, or -1 if it is unknown
+     * @return the temporary file with the attachment's content, or null if it could not be downloaded
+     */
+    public File downloadAttachment(String tableId, String rowId, String relativePath, long contentLength) {
+        log.info("Get attachment " + relativePath + " of row " + rowId + " of a table with tableId: " + tableId);
+        String schemaETag = getSchemaETag(tableId);
+        if (schemaETag == null) {
+            return null;
+        }
+        SyncClient wc = session().wc;
+        File file = null;
+        boolean downloaded = false;
+        try {
+            file = Files.createTempFile("odk-attachment-", null).toFile();
+            String path = file.getAbsolutePath();
+            // large attachments may take longer than the request deadline
+            limiter.transfer(() -> {
+                wc.getFileForRow(aggUrl, appId, tableId, schemaETag, rowId, false, path, relativePath);
+                return null;
+            }, attachmentTimeoutMillis);
+            if (contentLength >= 0 && file.length() != contentLength) {
+                log.warning("Attachment " + relativePath + " of row " + rowId + " has " + file.length()
+                        + " bytes instead of " + contentLength);
+                return null;
+            }
+            downloaded = true;
+            return file;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (JSONException e) {
+            e.printStackTrace();
+        } finally {
+            if (!downloaded && file != null) {
+                file.delete();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the current dataETag of a table with given tableId, which changes whenever a row of the table changes
+     * @param tableId the table identifier or name
+     * @return the table's dataETag, or null if it could not be retrieved
+     */
+    public String getDataETag(String tableId) {
+        SyncClient wc = session().wc;
+        try {
+            return limiter.call(() -> wc.getTableDataETag(aggUrl, appId, tableId));
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Return the schemaEtag of a table with given tableId
+     * @param tableId the table identifier or name
+     * @return the table's schemaEtag, or null if the table does not exist or the current session's credentials have
+     * not proved valid
+     */
+    private String getSchemaETag(String tableId) {
+        if (!session().validated) {
+            return null;
+        }
+        for (TableInfo tableInfo : tableInfos) {
+            if (tableInfo.getTableId().equals(tableId)) {
+                return tableInfo.getSchemaEtag();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Store the SyncClient of a single user and the rows it fetched
+     */
+    private static class SyncSession {
+        private final List<String> key;
+        private final SyncClient wc;
+        // whether the credentials proved valid, and whether the session is kept for further requests
+        private volatile boolean validated;
+        private volatile boolean kept;
+        // the map that maps from table id to the table's last fetched rows
+        private final Map<String, CachedRows> tableIdToRowsMap = new ConcurrentHashMap<>();
+        // the map that maps from table id to the lock held while fetching all of the table's rows
+        private final Map<String, Object> tableIdToFetchLockMap = new ConcurrentHashMap<>();
+
+        SyncSession(List<String> key, SyncClient wc) {
+            this.key = key;
+            this.wc = wc;
+        }
+    }
+
+    @Data
+    /**
+     * Store the rows of a table that changed since a dataETag, and the dataETag they are up to date with
+     */
+    public static class TableChanges {
+        private final JSONArray rows;
+        private final String dataEtag;
+    }
+
     @Data
     /**
      * Store the information about table's id and schemaEtag
@@ -193,4 +616,98 @@ public class SyncDataConverter {
             this.schemaEtag = schemaEtag;
         }
     }
+
+    /**
+     * Store a table's rows by row id together with the schemaEtag and dataETag they are up to date with, and the
+     * search index over them once it is requested. Changes are applied row by row, and readers get an immutable
+     * snapshot of the rows so that they never see a half-applied change
+     */
+    private static class CachedRows {
+        private final String schemaEtag;
+        private volatile String dataEtag;
+        private final Map<String, JSONObject> rowIdToRowMap = new LinkedHashMap<>();
+        private volatile JSONArray rows;
+        // guarded by the CachedRows itself
+        private RowSearchIndex searchIndex;
+
+        CachedRows(String schemaEtag, String dataEtag, JSONArray rows) throws JSONException {
+            this.schemaEtag = schemaEtag;
+            this.dataEtag = dataEtag;
+            for (int i = 0; i < rows.size(); i++) {
+                JSONObject row = rows.getJSONObject(i);
+                rowIdToRowMap.put(row.getString(SyncClient.ID_JSON), row);
+            }
+            this.rows = rows;
+        }
+
+        String getSchemaEtag() {
+            return schemaEtag;
+        }
+
+        String getDataEtag() {
+            return dataEtag;
+        }
+
+        void setDataEtag(String dataEtag) {
+            this.dataEtag = dataEtag;
+        }
+
+        JSONArray getRows() {
+            return rows;
+        }
+
+        /**
+         * Apply changed rows (new, updated or deleted) to the rows and the search index
+         * @param changedRows the changed rows
+         * @throws JSONException
+         */
+        synchronized void apply(JSONArray changedRows) throws JSONException {
+            for (int i = 0; i < changedRows.size(); i++) {
+                JSONObject row = changedRows.getJSONObject(i);
+                String rowId = row.getString(SyncClient.ID_JSON);
+                boolean deleted = row.optBoolean(SyncClient.DELETED_JSON, false);
+                if (deleted) {
+                    rowIdToRowMap.remove(rowId);
+                } else {
+                    rowIdToRowMap.put(rowId, row);
+                }
+                if (searchIndex != null) {
+                    if (deleted) {
+                        searchIndex.remove(rowId);
+                    } else {
+                        searchIndex.update(rowId, row);
+                    }
+                }
+            }
+            JSONArray newRows = new JSONArray();
+            newRows.addAll(rowIdToRowMap.values());
+            rows = newRows;
+        }
+
+        /**
+         * Return the rows matching a $search expression, building the search index over the given columns from the
+         * rows the first time. No change is applied meanwhile, so the index matches the rows
+         * @param columns the string columns to index
+         * @param searchExpression the parsed $search expression
+         * @return a new JSONArray with the matching rows in table order
+         * @throws JSONException
+         */
+        synchronized JSONArray search(Set<String> columns, SearchExpression searchExpression) throws JSONException {
+            if (searchIndex == null) {
+                RowSearchIndex newSearchIndex = new RowSearchIndex(columns);
+                for (Map.Entry<String, JSONObject> e : rowIdToRowMap.entrySet()) {
+                    newSearchIndex.update(e.getKey(), e.getValue());
+                }
+                searchIndex = newSearchIndex;
+            }
+            Set<String> rowIds = searchIndex.search(searchExpression);
+            JSONArray matchingRows = new JSONArray();
+            for (Map.Entry<String, JSONObject> e : rowIdToRowMap.entrySet()) {
+                if (rowIds.contains(e.getKey())) {
+                    matchingRows.add(e.getValue());
+                }
+            }
+            return matchingRows;
+        }
+    }
 }
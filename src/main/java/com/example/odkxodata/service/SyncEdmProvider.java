@@ -5,35 +5,41 @@ import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind;
 import org.apache.olingo.commons.api.edm.FullQualifiedName;
 import org.apache.olingo.commons.api.edm.provider.*;
 import org.apache.olingo.commons.api.ex.ODataException;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.stereotype.Component;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Class used as the implementation of the Entity Data Model(EDM), which is the underlying metadata model of
  * the OData protocol. Note that some methods used only for the output of the metadata document.
  */
-@Component
 @Log
 public class SyncEdmProvider extends CsdlAbstractEdmProvider {
     // Service Namespace
-    @Value("${odk.namespace}")
-    public String namespace;
+    public final String namespace;
 
     // EDM Container
-    @Value("${odk.container}")
-    public String containerName;
-    public final FullQualifiedName CONTAINER = new FullQualifiedName(namespace, containerName);
+    public final String containerName;
+    public final FullQualifiedName CONTAINER;
 
-    // store all tables' id and etag for the current client to avoid unnecessary calls to SyncClient
-    private List<SyncDataConverter.TableInfo> tableInfos;
-    // the map that maps from table id to table's definition
-    private final Map<String, Map<String, FullQualifiedName>> tableIdToDefMap = new HashMap<>();
+    // suffix of the media entity set that serves a table's row attachments
+    public static final String ATTACHMENTS_SUFFIX = "_attachments";
 
-    @Autowired
-    SyncDataConverter syncDataConverter;
+    // all tables' id and etag together with their definitions, replaced as a whole since concurrent requests read it
+    private volatile TableSnapshot snapshot = new TableSnapshot(Collections.emptyList());
+
+    private final SyncDataConverter syncDataConverter;
+    // parent/child relations between tables, each one is exposed as a navigation property on both tables
+    private final List<SyncTenantProperties.Relation> relations;
+
+    public SyncEdmProvider(String namespace, String containerName, SyncDataConverter syncDataConverter,
+                           List<SyncTenantProperties.Relation> relations) {
+        this.namespace = namespace;
+        this.containerName = containerName;
+        this.CONTAINER = new FullQualifiedName(namespace, containerName);
+        this.syncDataConverter = syncDataConverter;
+        this.relations = relations;
+    }
 
     /**
      * Return an EntityType with its properties that are configured in the Schema
@@ -42,26 +48,18 @@ public class SyncEdmProvider extends CsdlAbstractEdmProvider {
      */
     @Override
     public CsdlEntityType getEntityType(FullQualifiedName entityTypeName) throws ODataException {
-        // get corresponding table id and schemaEtag (tableInfo) based on the entityTypeName
-        SyncDataConverter.TableInfo tableInfo = null;
-        for (SyncDataConverter.TableInfo tableInfoEntry : tableInfos) {
-            if (tableInfoEntry.getTableId().equals(entityTypeName.getName())) {
-                tableInfo = tableInfoEntry;
-                break;
-            }
+        if (isAttachmentSet(entityTypeName.getName())) {
+            return getAttachmentEntityType(entityTypeName);
         }
+        TableSnapshot snapshot = this.snapshot;
+        // get corresponding table id and schemaEtag (tableInfo) based on the entityTypeName
+        SyncDataConverter.TableInfo tableInfo = getTableInfo(snapshot, entityTypeName.getName());
         if (tableInfo == null) {
             return null;
         }
-        String tableId = tableInfo.getTableId();
-        Map<String, FullQualifiedName> tableDef;
-
-        // Only retrieve the missing table definition through Sync Protocol to speed up
-        if (!tableIdToDefMap.containsKey(tableId)) {
-            tableDef = syncDataConverter.getTableDefinition(tableInfo);
-            tableIdToDefMap.put(tableId, tableDef);
-        } else {
-            tableDef = tableIdToDefMap.get(tableId);
+        Map<String, FullQualifiedName> tableDef = loadTableDef(snapshot, tableInfo);
+        if (tableDef == null) {
+            return null;
         }
         // format table definition into EntityType properties
         List<CsdlProperty> properties = formatProperties(tableDef);
@@ -75,10 +73,42 @@ public class SyncEdmProvider extends CsdlAbstractEdmProvider {
         // note that entity type's name is tableId, which matches corresponding entity set's type
         entityType.setName(entityTypeName.getName());
         entityType.setProperties(properties);
+        entityType.setNavigationProperties(getNavigationProperties(snapshot, tableInfo.getTableId()));
         entityType.setKey(Collections.singletonList(propertyRef));
         return entityType;
     }
 
+    /**
+     * Return the media EntityType of a table's row attachments. Each entity is a single attachment of a row, keyed
+     * by the row id and the attachment column, and its media resource is the attachment's content
+     * @param entityTypeName the attachment entity type's name in the type of FullQualifiedName
+     * @return a CsdlEntityType representing the attachment EntityType, or null if the table has no attachments
+     */
+    private CsdlEntityType getAttachmentEntityType(FullQualifiedName entityTypeName) {
+        String tableId = getAttachmentTableId(entityTypeName.getName());
+        TableSnapshot snapshot = this.snapshot;
+        SyncDataConverter.TableInfo tableInfo = getTableInfo(snapshot, tableId);
+        if (tableInfo == null) {
+            return null;
+        }
+        if (getAttachmentColumns(loadTableDef(snapshot, tableInfo)).isEmpty()) {
+            return null;
+        }
+        // key property names must be OData identifiers to be addressable in a composite key, so no spaces here
+        List<CsdlProperty> properties = new ArrayList<>();
+        properties.add(new CsdlProperty().setName("RowId").setType(EdmPrimitiveTypeKind.String.getFullQualifiedName()).setNullable(false));
+        properties.add(new CsdlProperty().setName("Column").setType(EdmPrimitiveTypeKind.String.getFullQualifiedName()).setNullable(false));
+        properties.add(new CsdlProperty().setName("FileName").setType(EdmPrimitiveTypeKind.String.getFullQualifiedName()));
+        properties.add(new CsdlProperty().setName("ContentType").setType(EdmPrimitiveTypeKind.String.getFullQualifiedName()));
+
+        CsdlEntityType entityType = new CsdlEntityType();
+        entityType.setName(entityTypeName.getName());
+        entityType.setProperties(properties);
+        entityType.setKey(Arrays.asList(new CsdlPropertyRef().setName("RowId"), new CsdlPropertyRef().setName("Column")));
+        entityType.setHasStream(true);
+        return entityType;
+    }
+
     /**
      * Return an EntitySet which will be used to request data
      * @param entityContainer an entity set's name in the type of String
@@ -93,6 +123,14 @@ public class SyncEdmProvider extends CsdlAbstractEdmProvider {
             // note that entity set's type is tableId, and it is referred by a FullQualifiedName.
             // It matches corresponding entity type's name
             entitySet.setType(new FullQualifiedName(namespace, entitySetName));
+            // each navigation property is bound to the entity set of the related table, which has the same name
+            List<CsdlNavigationPropertyBinding> bindings = new ArrayList<>();
+            for (CsdlNavigationProperty navigationProperty : getNavigationProperties(snapshot, entitySetName)) {
+                bindings.add(new CsdlNavigationPropertyBinding()
+                        .setPath(navigationProperty.getName())
+                        .setTarget(navigationProperty.getName()));
+            }
+            entitySet.setNavigationPropertyBindings(bindings);
             return entitySet;
         }
         return null;
@@ -127,9 +165,13 @@ public class SyncEdmProvider extends CsdlAbstractEdmProvider {
         schema.setNamespace(namespace);
 
         // add EntityTypes
+        TableSnapshot snapshot = this.snapshot;
         List<CsdlEntityType> entityTypes = new ArrayList<>();
-        for (SyncDataConverter.TableInfo tableInfo : tableInfos) {
+        for (SyncDataConverter.TableInfo tableInfo : snapshot.tableInfos) {
             entityTypes.add(getEntityType(new FullQualifiedName(namespace, tableInfo.getTableId())));
+            if (!getAttachmentColumns(loadTableDef(snapshot, tableInfo)).isEmpty()) {
+                entityTypes.add(getEntityType(new FullQualifiedName(namespace, tableInfo.getTableId() + ATTACHMENTS_SUFFIX)));
+            }
         }
         schema.setEntityTypes(entityTypes);
 
@@ -152,9 +194,14 @@ public class SyncEdmProvider extends CsdlAbstractEdmProvider {
         log.info("getEntityContainer");
         // create EntitySets
         List<CsdlEntitySet> entitySets = new ArrayList<>();
+        TableSnapshot snapshot = this.snapshot;
         // go through each table to get corresponding EntitySet
-        for (SyncDataConverter.TableInfo tableInfo : tableInfos) {
+        for (SyncDataConverter.TableInfo tableInfo : snapshot.tableInfos) {
             entitySets.add(getEntitySet(CONTAINER, tableInfo.getTableId()));
+            // tables with row attachments also get a media entity set serving the attachments
+            if (!getAttachmentColumns(loadTableDef(snapshot, tableInfo)).isEmpty()) {
+                entitySets.add(getEntitySet(CONTAINER, tableInfo.getTableId() + ATTACHMENTS_SUFFIX));
+            }
         }
 
         // create EntityContainer
@@ -166,13 +213,13 @@ public class SyncEdmProvider extends CsdlAbstractEdmProvider {
     }
 
     /**
-     * Update tableInfos with a new list of TableInfo
+     * Update tableInfos with a new list of TableInfo. The tables and their definitions are replaced together, so
+     * that a request never sees the definitions of other tables than the ones it works with
      * @param tableInfos a list of TableInfo that has all tables' tableId and schemaEtag
      */
-    public void updateTableIds(List<SyncDataConverter.TableInfo> tableInfos) {
-        if (!tableInfos.isEmpty() && !tableInfos.equals(this.tableInfos)) {
-            tableIdToDefMap.clear();
-            this.tableInfos = tableInfos;
+    public synchronized void updateTableIds(List<SyncDataConverter.TableInfo> tableInfos) {
+        if (!tableInfos.isEmpty() && !tableInfos.equals(snapshot.tableInfos)) {
+            snapshot = new TableSnapshot(tableInfos);
         }
     }
 
@@ -187,6 +234,10 @@ public class SyncEdmProvider extends CsdlAbstractEdmProvider {
         properties.add(new CsdlProperty().setName("Create User").setType(EdmPrimitiveTypeKind.String.getFullQualifiedName()));
         properties.add(new CsdlProperty().setName("Update User").setType(EdmPrimitiveTypeKind.String.getFullQualifiedName()));
         for (Map.Entry<String, FullQualifiedName> e : tableDef.entrySet()) {
+            // row attachments are served by the table's attachment entity set
+            if (e.getValue().equals(EdmPrimitiveTypeKind.Stream.getFullQualifiedName())) {
+                continue;
+            }
             CsdlProperty property = new CsdlProperty()
                                         .setName(e.getKey())
                                         .setType(e.getValue());
@@ -196,11 +247,168 @@ public class SyncEdmProvider extends CsdlAbstractEdmProvider {
     }
 
     /**
-     * Return a specific table's definition in a map that maps from column name to OData primitive type
+     * Return a specific table's definition in a map that maps from column name to OData primitive type, retrieving
+     * it if the tables changed since the Entity Data Model was built
      * @param tableId the table identifier or name
-     * @return a map that maps from column name to OData primitive type
+     * @return a map that maps from column name to OData primitive type, or null if the table does not exist or its
+     * definition could not be retrieved
      */
     public Map<String, FullQualifiedName> getTableDefMap(String tableId) {
-        return tableIdToDefMap.get(tableId);
+        TableSnapshot snapshot = this.snapshot;
+        SyncDataConverter.TableInfo tableInfo = getTableInfo(snapshot, tableId);
+        return tableInfo == null ? null : loadTableDef(snapshot, tableInfo);
+    }
+
+    /**
+     * Return the configured relation behind a table's navigation property
+     * @param tableId the table identifier or name
+     * @param navigationName the navigation property's name, which is the related table's id
+     * @return the relation, or null if the table has no such navigation property
+     */
+    public SyncTenantProperties.Relation getRelation(String tableId, String navigationName) {
+        for (SyncTenantProperties.Relation relation : relations) {
+            if ((relation.getParent().equals(tableId) && relation.getChild().equals(navigationName))
+                    || (relation.getChild().equals(tableId) && relation.getParent().equals(navigationName))) {
+                return relation;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return a table's navigation properties: a collection of children for each relation where the table is the
+     * parent, and a single parent for each relation where the table is the child. Relations to tables that do not
+     * exist are ignored, and so are relations to tables named like a column of the table, since a navigation property
+     * must not have the name of a property
+     * @param snapshot the tables to look the table and the related tables up in
+     * @param tableId the table identifier or name
+     * @return list of CsdlNavigationProperty named after the related tables
+     */
+    private List<CsdlNavigationProperty> getNavigationProperties(TableSnapshot snapshot, String tableId) {
+        List<CsdlNavigationProperty> navigationProperties = new ArrayList<>();
+        if (getTableInfo(snapshot, tableId) == null) {
+            return navigationProperties;
+        }
+        Map<String, FullQualifiedName> tableDef = null;
+        for (SyncDataConverter.TableInfo relatedTable : snapshot.tableInfos) {
+            SyncTenantProperties.Relation relation = getRelation(tableId, relatedTable.getTableId());
+            if (relation == null) {
+                continue;
+            }
+            if (tableDef == null) {
+                tableDef = loadTableDef(snapshot, getTableInfo(snapshot, tableId));
+            }
+            if (tableDef != null && tableDef.containsKey(relatedTable.getTableId())) {
+                log.warning("Ignore relation between " + tableId + " and " + relatedTable.getTableId()
+                        + ", which collides with a column of " + tableId);
+                continue;
+            }
+            navigationProperties.add(new CsdlNavigationProperty()
+                    .setName(relatedTable.getTableId())
+                    .setType(new FullQualifiedName(namespace, relatedTable.getTableId()))
+                    .setCollection(relation.getParent().equals(tableId))
+                    .setPartner(tableId));
+        }
+        return navigationProperties;
+    }
+
+    /**
+     * Return the names of a specific table's attachment columns
+     * @param tableId the table identifier or name
+     * @return a list of the table's attachment column names, empty if the table does not exist or its definition
+     * could not be retrieved
+     */
+    public List<String> getAttachmentColumns(String tableId) {
+        TableSnapshot snapshot = this.snapshot;
+        SyncDataConverter.TableInfo tableInfo = getTableInfo(snapshot, tableId);
+        return getAttachmentColumns(tableInfo == null ? null : loadTableDef(snapshot, tableInfo));
+    }
+
+    /**
+     * Return the names of the attachment columns in a table's definition
+     * @param tableDef a map that maps from column name to OData primitive type, or null
+     * @return a list of the attachment column names, empty if there is no table definition
+     */
+    private static List<String> getAttachmentColumns(Map<String, FullQualifiedName> tableDef) {
+        List<String> columns = new ArrayList<>();
+        if (tableDef == null) {
+            return columns;
+        }
+        for (Map.Entry<String, FullQualifiedName> e : tableDef.entrySet()) {
+            if (e.getValue().equals(EdmPrimitiveTypeKind.Stream.getFullQualifiedName())) {
+                columns.add(e.getKey());
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Return whether the given entity set or entity type name refers to a table's attachments
+     * @param name an entity set or entity type name
+     * @return true if name refers to a table's attachments
+     */
+    public static boolean isAttachmentSet(String name) {
+        return name.endsWith(ATTACHMENTS_SUFFIX);
+    }
+
+    /**
+     * Return the table id of an attachment entity set or entity type name
+     * @param name an attachment entity set or entity type name
+     * @return the identifier of the table owning the attachments
+     */
+    public static String getAttachmentTableId(String name) {
+        return name.substring(0, name.length() - ATTACHMENTS_SUFFIX.length());
+    }
+
+    /**
+     * Return the TableInfo of a table with given tableId
+     * @param snapshot the tables to look the table up in
+     * @param tableId the table identifier or name
+     * @return the table's TableInfo, or null if the table does not exist
+     */
+    private static SyncDataConverter.TableInfo getTableInfo(TableSnapshot snapshot, String tableId) {
+        for (SyncDataConverter.TableInfo tableInfo : snapshot.tableInfos) {
+            if (tableInfo.getTableId().equals(tableId)) {
+                return tableInfo;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return a table's definition, retrieving it through Sync Protocol only if it is missing
+     * @param snapshot the tables the definition belongs to
+     * @param tableInfo the table's tableId and schemaEtag in the type of TableInfo
+     * @return a map that maps from column name to OData primitive type, or null if it could not be retrieved
+     */
+    private Map<String, FullQualifiedName> loadTableDef(TableSnapshot snapshot, SyncDataConverter.TableInfo tableInfo) {
+        String tableId = tableInfo.getTableId();
+        // Only retrieve the missing table definition through Sync Protocol to speed up
+        Map<String, FullQualifiedName> tableDef = snapshot.tableIdToDefMap.get(tableId);
+        if (tableDef == null) {
+            tableDef = syncDataConverter.getTableDefinition(tableInfo);
+            if (tableDef != null) {
+                // concurrent requests may both retrieve it, they get the same definition
+                tableDef = Collections.unmodifiableMap(tableDef);
+                Map<String, FullQualifiedName> previous = snapshot.tableIdToDefMap.putIfAbsent(tableId, tableDef);
+                if (previous != null) {
+                    tableDef = previous;
+                }
+            }
+        }
+        return tableDef;
+    }
+
+    /**
+     * Store the tables' id and etag together with the definitions of these tables retrieved so far
+     */
+    private static class TableSnapshot {
+        private final List<SyncDataConverter.TableInfo> tableInfos;
+        // the map that maps from table id to table's definition
+        private final Map<String, Map<String, FullQualifiedName>> tableIdToDefMap = new ConcurrentHashMap<>();
+
+        TableSnapshot(List<SyncDataConverter.TableInfo> tableInfos) {
+            this.tableInfos = Collections.unmodifiableList(new ArrayList<>(tableInfos));
+        }
     }
 }
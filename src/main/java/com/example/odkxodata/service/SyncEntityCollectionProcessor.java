@@ -5,6 +5,7 @@ import lombok.extern.java.Log;
 import org.apache.olingo.commons.api.data.*;
 import org.apache.olingo.commons.api.edm.EdmEntitySet;
 import org.apache.olingo.commons.api.edm.EdmEntityType;
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind;
 import org.apache.olingo.commons.api.edm.FullQualifiedName;
 import org.apache.olingo.commons.api.format.ContentType;
 import org.apache.olingo.commons.api.http.HttpHeader;
@@ -18,37 +19,41 @@ import org.apache.olingo.server.api.serializer.SerializerResult;
 import org.apache.olingo.server.api.uri.UriInfo;
 import org.apache.olingo.server.api.uri.UriResource;
 import org.apache.olingo.server.api.uri.UriResourceEntitySet;
+import org.apache.olingo.server.api.uri.UriResourceNavigation;
+import org.apache.olingo.server.api.uri.queryoption.ExpandItem;
+import org.apache.olingo.server.api.uri.queryoption.ExpandOption;
+import org.apache.olingo.server.api.uri.queryoption.SearchOption;
+import org.apache.olingo.server.api.uri.queryoption.search.SearchExpression;
 import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException;
 import org.apache.wink.json4j.JSONObject;
 import org.opendatakit.sync.client.SyncClient;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.stereotype.Component;
 
-import javax.annotation.Resource;
 import java.io.InputStream;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 /**
  * The class is an OData Processor that is only responsible for handling a collection of entities.
  * Specifically, it is responsible for retrieving a SyncClient table's all data
  */
-@Component
 @Log
 public class SyncEntityCollectionProcessor implements EntityCollectionProcessor {
 
-    @Resource
-    SyncDataConverter syncDataConverter;
+    private final SyncDataConverter syncDataConverter;
 
-    @Resource
-    SyncEdmProvider syncEdmProvider;
+    private final SyncEdmProvider syncEdmProvider;
 
-    @Value("${odk.nulloutput.allow}")
-    private boolean allowNullOutput;
+    private final boolean allowNullOutput;
     private OData odata;
     private ServiceMetadata serviceMetadata;
 
+    public SyncEntityCollectionProcessor(SyncDataConverter syncDataConverter, SyncEdmProvider syncEdmProvider,
+                                         boolean allowNullOutput) {
+        this.syncDataConverter = syncDataConverter;
+        this.syncEdmProvider = syncEdmProvider;
+        this.allowNullOutput = allowNullOutput;
+    }
+
     /**
      * Initialize the processor with an instance of the OData object and store the context object
      * @param odata an instance of the OData object
@@ -85,17 +90,40 @@ public class SyncEntityCollectionProcessor implements EntityCollectionProcessor
 
         // fetch the data for this requested tableId through Sync Protocol
         String tableId = edmEntitySet.getName();
-        EntityCollection entitySet = this.getEntitySetData(tableId);
+        ExpandOption expandOption = uriInfo.getExpandOption();
+        if (expandOption != null) {
+            for (ExpandItem expandItem : expandOption.getExpandItems()) {
+                checkExpandItem(expandItem);
+            }
+        }
+        // only the rows matching $search are formatted, found through the table's search index
+        JSONArray rows = null;
+        SearchOption searchOption = uriInfo.getSearchOption();
+        if (searchOption != null && searchOption.getSearchExpression() != null) {
+            rows = search(tableId, searchOption.getSearchExpression());
+        }
+        EntityCollection entitySet = this.getEntitySetData(tableId, rows);
+
+        // join the related tables requested by $expand into the entities
+        EdmEntityType edmEntityType = edmEntitySet.getEntityType();
+        if (expandOption != null) {
+            for (ExpandItem expandItem : expandOption.getExpandItems()) {
+                for (String navigationName : getNavigationNames(edmEntityType, expandItem)) {
+                    expand(tableId, navigationName, entitySet);
+                }
+            }
+        }
 
         // create a serializer based on the requested format (json)
         ODataSerializer serializer = odata.createSerializer(responseFormat);
 
         // serialize the content: transform from the EntitySet object the InputStream
-        EdmEntityType edmEntityType = edmEntitySet.getEntityType();
-        ContextURL contextUrl = ContextURL.with().entitySet(edmEntitySet).build();
+        String selectList = odata.createUriHelper().buildContextURLSelectList(edmEntityType, expandOption, null);
+        ContextURL contextUrl = ContextURL.with().entitySet(edmEntitySet).selectList(selectList).build();
 
         final String id = request.getRawBaseUri() + "/" + edmEntitySet.getName();
-        EntityCollectionSerializerOptions opts = EntityCollectionSerializerOptions.with().id(id).contextURL(contextUrl).build();
+        EntityCollectionSerializerOptions opts = EntityCollectionSerializerOptions.with().id(id).contextURL(contextUrl)
+                .expand(expandOption).build();
         SerializerResult serializerResult = serializer.entityCollection(serviceMetadata, edmEntityType, entitySet, opts);
         InputStream serializedContent = serializerResult.getContent();
 
@@ -105,24 +133,156 @@ public class SyncEntityCollectionProcessor implements EntityCollectionProcessor
         response.setHeader(HttpHeader.CONTENT_TYPE, responseFormat.toContentTypeString());
     }
 
+    /**
+     * Reject the options of a single $expand item that the join does not apply. Only a nested $select is
+     * supported, which is applied by the serializer
+     * @param expandItem a single item of $expand
+     * @throws ODataApplicationException if the item has other nested options
+     */
+    private void checkExpandItem(ExpandItem expandItem) throws ODataApplicationException {
+        if (expandItem.getFilterOption() != null || expandItem.getSearchOption() != null
+                || expandItem.getOrderByOption() != null || expandItem.getSkipOption() != null
+                || expandItem.getTopOption() != null || expandItem.getCountOption() != null
+                || expandItem.getExpandOption() != null || expandItem.getLevelsOption() != null
+                || expandItem.getApplyOption() != null || expandItem.isRef() || expandItem.hasCountPath()) {
+            throw new ODataApplicationException("Only $select is supported within $expand",
+                    HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ENGLISH);
+        }
+    }
+
+    /**
+     * Return the names of the navigation properties requested by a single $expand item
+     * @param edmEntityType the entity type being expanded
+     * @param expandItem a single item of $expand
+     * @return the navigation property names, all of them for $expand=*
+     */
+    private List<String> getNavigationNames(EdmEntityType edmEntityType, ExpandItem expandItem) {
+        if (expandItem.isStar()) {
+            return edmEntityType.getNavigationPropertyNames();
+        }
+        UriResource uriResource = expandItem.getResourcePath().getUriResourceParts().get(0);
+        if (uriResource instanceof UriResourceNavigation) {
+            return Collections.singletonList(((UriResourceNavigation) uriResource).getProperty().getName());
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Join the related table behind a navigation property into the given entities. The related table is fetched
+     * once and indexed by its join column in a hash map, so that each entity finds its related entities with a
+     * single lookup instead of a request per entity
+     * @param tableId the table identifier or name of the given entities
+     * @param navigationName the navigation property's name, which is the related table's id
+     * @param entityCollection the entities to expand
+     * @throws JSONException
+     * @throws ODataApplicationException if the related table's rows could not be retrieved
+     */
+    private void expand(String tableId, String navigationName, EntityCollection entityCollection)
+            throws JSONException, ODataApplicationException {
+        SyncTenantProperties.Relation relation = syncEdmProvider.getRelation(tableId, navigationName);
+        if (relation == null) {
+            return;
+        }
+        // a parent is joined to its children by its row id, a child is joined to its parent by the link column
+        boolean toChildren = relation.getParent().equals(tableId);
+        String sourceKey = toChildren ? "Row Id" : relation.getColumn();
+        String targetKey = toChildren ? relation.getColumn() : "Row Id";
+        join(entityCollection, getEntitySetData(navigationName, null).getEntities(), navigationName,
+                sourceKey, targetKey, toChildren);
+    }
+
+    /**
+     * Hash join the related entities into the given entities as inline navigation links
+     * @param entityCollection the entities to expand
+     * @param targets the related entities
+     * @param navigationName the navigation property's name
+     * @param sourceKey the property of the given entities to join on
+     * @param targetKey the property of the related entities to join on
+     * @param toChildren true if each entity has a collection of related entities, false if it has at most one
+     */
+    static void join(EntityCollection entityCollection, List<Entity> targets, String navigationName,
+                     String sourceKey, String targetKey, boolean toChildren) {
+        // build side: index the related table by its join column
+        Map<String, List<Entity>> targetIndex = new HashMap<>();
+        for (Entity target : targets) {
+            Property key = target.getProperty(targetKey);
+            if (key != null && key.getValue() != null) {
+                targetIndex.computeIfAbsent(String.valueOf(key.getValue()), k -> new ArrayList<>()).add(target);
+            }
+        }
+
+        // probe side: attach the matching related entities to each entity as an inline link
+        for (Entity source : entityCollection.getEntities()) {
+            Property key = source.getProperty(sourceKey);
+            List<Entity> matches = key == null || key.getValue() == null ? Collections.emptyList()
+                    : targetIndex.getOrDefault(String.valueOf(key.getValue()), Collections.emptyList());
+            Link link = new Link();
+            link.setTitle(navigationName);
+            if (toChildren) {
+                EntityCollection inline = new EntityCollection();
+                inline.getEntities().addAll(matches);
+                link.setInlineEntitySet(inline);
+            } else if (!matches.isEmpty()) {
+                link.setInlineEntity(matches.get(0));
+            }
+            source.getNavigationLinks().add(link);
+        }
+    }
+
+    /**
+     * Return a table's rows matching a $search expression. Terms are looked up in the table's inverted index over
+     * its string columns, and combined with AND, OR and NOT as set operations
+     * @param tableId the table identifier or name
+     * @param searchExpression the parsed $search expression
+     * @return a JSONArray with the matching rows
+     * @throws ODataApplicationException if the table cannot be searched
+     */
+    private JSONArray search(String tableId, SearchExpression searchExpression) throws ODataApplicationException {
+        if (SyncEdmProvider.isAttachmentSet(tableId)) {
+            throw new ODataApplicationException("$search is not supported for " + tableId,
+                    HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ENGLISH);
+        }
+        Map<String, FullQualifiedName> tableDef = getTableDefMap(tableId);
+        Set<String> columns = new HashSet<>();
+        for (Map.Entry<String, FullQualifiedName> e : tableDef.entrySet()) {
+            if (e.getValue().equals(EdmPrimitiveTypeKind.String.getFullQualifiedName())) {
+                columns.add(e.getKey());
+            }
+        }
+        JSONArray rows = syncDataConverter.searchRows(tableId, columns, searchExpression);
+        if (rows == null) {
+            throw new ODataApplicationException("Rows of " + tableId + " could not be retrieved",
+                    HttpStatusCode.BAD_GATEWAY.getStatusCode(), Locale.ENGLISH);
+        }
+        return rows;
+    }
+
     /**
      * Take a tableId and transform the relevant Sync Protocol table values to a list of entities
      * and return the list in an EntityCollection
      * @param tableId the table identifier or name
+     * @param rows the rows to transform (e.g. the rows matching $search), or null to transform all rows
      * @return an EntityCollection that contains a list of entities
      * @throws JSONException
+     * @throws ODataApplicationException if the table's definition or rows could not be retrieved
      */
-    private EntityCollection getEntitySetData(String tableId) throws JSONException {
-        JSONArray rows = syncDataConverter.getRows(tableId);
+    private EntityCollection getEntitySetData(String tableId, JSONArray rows)
+            throws JSONException, ODataApplicationException {
+        if (SyncEdmProvider.isAttachmentSet(tableId)) {
+            return getAttachmentSetData(tableId);
+        }
+        if (rows == null) {
+            rows = getRows(tableId);
+        }
         EntityCollection entityCollection = new EntityCollection();
 
-        Map<String, FullQualifiedName> tableDef = syncEdmProvider.getTableDefMap(tableId);
+        Map<String, FullQualifiedName> tableDef = getTableDefMap(tableId);
 
         // format all rows value to a list of entities
         for (int i = 0; i < rows.size(); i++) {
-            final Entity e = new Entity();
             // each row need to have id, createUser and lastUpdateUser, which should be set manually
             String id = rows.getJSONObject(i).getString("id");
+            final Entity e = new Entity();
             String createUser = rows.getJSONObject(i).getString("createUser");
             String lastUpdateUser = rows.getJSONObject(i).getString("lastUpdateUser");
             e.addProperty(new Property("String", "Row Id", ValueType.PRIMITIVE, id))
@@ -145,6 +305,55 @@ public class SyncEntityCollectionProcessor implements EntityCollectionProcessor
         return entityCollection;
     }
 
+    /**
+     * Take an attachment entity set's name and return one media entity for each row attachment of the table
+     * in an EntityCollection
+     * @param setName the attachment entity set's name
+     * @return an EntityCollection that contains a list of attachment entities
+     * @throws JSONException
+     * @throws ODataApplicationException if the table's rows could not be retrieved
+     */
+    private EntityCollection getAttachmentSetData(String setName) throws JSONException, ODataApplicationException {
+        String tableId = SyncEdmProvider.getAttachmentTableId(setName);
+        JSONArray rows = getRows(tableId);
+        List<String> columns = syncEdmProvider.getAttachmentColumns(tableId);
+        EntityCollection entityCollection = new EntityCollection();
+        for (int i = 0; i < rows.size(); i++) {
+            entityCollection.getEntities().addAll(SyncMediaEntityProcessor.formatAttachments(setName, rows.getJSONObject(i), columns));
+        }
+        return entityCollection;
+    }
+
+    /**
+     * Return all rows of a table
+     * @param tableId the table identifier or name
+     * @return a JSONArray with all rows of the table
+     * @throws ODataApplicationException if the rows could not be retrieved from the Sync server
+     */
+    private JSONArray getRows(String tableId) throws ODataApplicationException {
+        JSONArray rows = syncDataConverter.getRows(tableId);
+        if (rows == null) {
+            throw new ODataApplicationException("Rows of " + tableId + " could not be retrieved",
+                    HttpStatusCode.BAD_GATEWAY.getStatusCode(), Locale.ENGLISH);
+        }
+        return rows;
+    }
+
+    /**
+     * Return a table's definition
+     * @param tableId the table identifier or name
+     * @return a map that maps from column name to OData primitive type
+     * @throws ODataApplicationException if the definition could not be retrieved from the Sync server
+     */
+    private Map<String, FullQualifiedName> getTableDefMap(String tableId) throws ODataApplicationException {
+        Map<String, FullQualifiedName> tableDef = syncEdmProvider.getTableDefMap(tableId);
+        if (tableDef == null) {
+            throw new ODataApplicationException("Definition of " + tableId + " could not be retrieved",
+                    HttpStatusCode.BAD_GATEWAY.getStatusCode(), Locale.ENGLISH);
+        }
+        return tableDef;
+    }
+
     /**
      * Format a row's single field value into an OData property and return it
      * @param OdataType OdataType in the type of FullQualifiedName
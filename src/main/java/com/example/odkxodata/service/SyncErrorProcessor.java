@@ -0,0 +1,67 @@
+package com.example.odkxodata.service;
+
+import lombok.extern.java.Log;
+import org.apache.olingo.commons.api.format.ContentType;
+import org.apache.olingo.commons.api.http.HttpHeader;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.*;
+import org.apache.olingo.server.api.processor.ErrorProcessor;
+import org.apache.olingo.server.api.serializer.SerializerException;
+
+/**
+ * The class is an OData Processor that is responsible for serializing errors. It answers requests rejected by the
+ * tenant's AdaptiveConcurrencyLimiter with 503 Service Unavailable and a Retry-After header instead of 500
+ */
+@Log
+public class SyncErrorProcessor implements ErrorProcessor {
+    private OData odata;
+
+    /**
+     * Initialize the processor with an instance of the OData object
+     * @param odata an instance of the OData object
+     * @param serviceMetadata Entity Data Model and current service metadata
+     */
+    public void init(OData odata, ServiceMetadata serviceMetadata) {
+        this.odata = odata;
+    }
+
+    /**
+     * Serialize the given error into the ODataResponse
+     * @param request an ODataRequest that has request body and headers information from client
+     * @param response an ODataResponse that will be set and sent to client
+     * @param serverError the error to serialize
+     * @param responseFormat a ContentType represents the response body format
+     */
+    public void processError(ODataRequest request, ODataResponse response, ODataServerError serverError,
+                             ContentType responseFormat) {
+        UpstreamOverloadedException overloaded = findOverloaded(serverError.getException());
+        if (overloaded != null) {
+            log.warning("Reject request: " + overloaded.getMessage());
+            serverError.setStatusCode(HttpStatusCode.SERVICE_UNAVAILABLE.getStatusCode());
+            serverError.setMessage(overloaded.getMessage());
+            response.setHeader(HttpHeader.RETRY_AFTER, String.valueOf(overloaded.getRetryAfterSeconds()));
+        }
+        try {
+            response.setContent(odata.createSerializer(responseFormat).error(serverError).getContent());
+            response.setHeader(HttpHeader.CONTENT_TYPE, responseFormat.toContentTypeString());
+        } catch (SerializerException e) {
+            e.printStackTrace();
+        }
+        response.setStatusCode(serverError.getStatusCode());
+    }
+
+    /**
+     * Return the UpstreamOverloadedException that caused the given exception if there is any
+     * @param e the exception that failed the request
+     * @return the UpstreamOverloadedException in e's cause chain, or null if there is none
+     */
+    private UpstreamOverloadedException findOverloaded(Throwable e) {
+        while (e != null) {
+            if (e instanceof UpstreamOverloadedException) {
+                return (UpstreamOverloadedException) e;
+            }
+            e = e.getCause();
+        }
+        return null;
+    }
+}
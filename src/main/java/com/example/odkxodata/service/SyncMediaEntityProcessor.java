@@ -0,0 +1,408 @@
+package com.example.odkxodata.service;
+
+import lombok.SneakyThrows;
+import lombok.extern.java.Log;
+import org.apache.olingo.commons.api.data.ContextURL;
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.Property;
+import org.apache.olingo.commons.api.data.ValueType;
+import org.apache.olingo.commons.api.edm.EdmEntitySet;
+import org.apache.olingo.commons.api.format.ContentType;
+import org.apache.olingo.commons.api.http.HttpHeader;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.*;
+import org.apache.olingo.server.api.processor.MediaEntityProcessor;
+import org.apache.olingo.server.api.serializer.EntitySerializerOptions;
+import org.apache.olingo.server.api.serializer.SerializerResult;
+import org.apache.olingo.server.api.uri.UriInfo;
+import org.apache.olingo.server.api.uri.UriParameter;
+import org.apache.olingo.server.api.uri.UriResourceEntitySet;
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.opendatakit.sync.client.SyncClient;
+
+import java.io.*;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The class is an OData Processor that is only responsible for a table's row attachments, which are served as media
+ * entities of the table's attachment entity set (e.g. household_attachments(RowId='uuid:...',Column='photo')/$value).
+ * Attachments are spooled to a temporary file and streamed from there, so that they never have to fit in the heap,
+ * and single byte ranges are supported through the Range header. The spooled file is shared by the requests for the
+ * same attachment content, so that seeking through an attachment does not download it again for every range
+ */
+@Log
+public class SyncMediaEntityProcessor implements MediaEntityProcessor {
+    private static final String RANGE_UNIT = "bytes";
+    private static final String ACCEPT_RANGES = "Accept-Ranges";
+    private static final String CONTENT_RANGE = "Content-Range";
+    // fields of an attachment's manifest entry
+    private static final String CONTENT_LENGTH_JSON = "contentLength";
+    private static final String MD5_HASH_JSON = "md5hash";
+
+    private final SyncDataConverter syncDataConverter;
+
+    private final SyncEdmProvider syncEdmProvider;
+
+    private final AttachmentSpool attachmentSpool;
+
+    private OData odata;
+    private ServiceMetadata serviceMetadata;
+
+    public SyncMediaEntityProcessor(SyncDataConverter syncDataConverter, SyncEdmProvider syncEdmProvider,
+                                    AttachmentSpool attachmentSpool) {
+        this.syncDataConverter = syncDataConverter;
+        this.syncEdmProvider = syncEdmProvider;
+        this.attachmentSpool = attachmentSpool;
+    }
+
+    /**
+     * Initialize the processor with an instance of the OData object and store the context object
+     * @param odata an instance of the OData object
+     * @param serviceMetadata Entity Data Model and current service metadata
+     */
+    public void init(OData odata, ServiceMetadata serviceMetadata) {
+        this.odata = odata;
+        this.serviceMetadata = serviceMetadata;
+    }
+
+    /**
+     * Take an ODataRequest for an attachment's content and stream the attachment into the ODataResponse.
+     * Invoked when the OData service is called with an HTTP GET operation for a media entity's $value
+     *
+     * @param request an ODataRequest that has request body and headers information from client
+     * @param response an ODataResponse that will be set and sent to client
+     * @param uriInfo an UriInfo that describes the request URI
+     * @param responseFormat a ContentType represents the negotiated response format
+     * @throws ODataApplicationException
+     */
+    @SneakyThrows
+    public void readMediaEntity(ODataRequest request, ODataResponse response, UriInfo uriInfo, ContentType responseFormat)
+            throws ODataApplicationException {
+        UriResourceEntitySet uriResourceEntitySet = (UriResourceEntitySet) uriInfo.getUriResourceParts().get(0);
+        Entity entity = getAttachmentEntity(uriResourceEntitySet);
+        String tableId = SyncEdmProvider.getAttachmentTableId(uriResourceEntitySet.getEntitySet().getName());
+        String rowId = (String) entity.getProperty("RowId").getValue();
+        String fileName = (String) entity.getProperty("FileName").getValue();
+
+        // SyncClient saves any answer of the Sync server as the file, so make sure the attachment exists first
+        JSONObject manifestEntry;
+        try {
+            manifestEntry = syncDataConverter.getAttachmentManifestEntry(tableId, rowId, fileName);
+        } catch (IOException | JSONException e) {
+            throw new ODataApplicationException("Attachment could not be retrieved",
+                    HttpStatusCode.BAD_GATEWAY.getStatusCode(), Locale.ENGLISH, e);
+        }
+        if (manifestEntry == null) {
+            throw new ODataApplicationException("Attachment not found", HttpStatusCode.NOT_FOUND.getStatusCode(),
+                    Locale.ENGLISH);
+        }
+        long contentLength = manifestEntry.optLong(CONTENT_LENGTH_JSON, -1);
+        String key = tableId + "/" + rowId + "/" + fileName + "/"
+                + manifestEntry.optString(MD5_HASH_JSON, String.valueOf(contentLength));
+        AttachmentSpool.SpooledFile spooled = attachmentSpool.acquire(key,
+                () -> syncDataConverter.downloadAttachment(tableId, rowId, fileName, contentLength));
+        if (spooled == null) {
+            throw new ODataApplicationException("Attachment could not be retrieved",
+                    HttpStatusCode.BAD_GATEWAY.getStatusCode(), Locale.ENGLISH);
+        }
+        File file = spooled.getFile();
+        long length = file.length();
+        long[] range = parseRange(request.getHeader(HttpHeader.RANGE), length);
+        response.setHeader(ACCEPT_RANGES, RANGE_UNIT);
+        if (range != null && range.length == 0) {
+            attachmentSpool.release(spooled);
+            response.setStatusCode(HttpStatusCode.RANGE_NOT_SATISFIABLE.getStatusCode());
+            response.setHeader(CONTENT_RANGE, RANGE_UNIT + " */" + length);
+            return;
+        }
+        long start = range == null ? 0 : range[0];
+        long end = range == null ? length - 1 : range[1];
+        if (range == null) {
+            response.setStatusCode(HttpStatusCode.OK.getStatusCode());
+        } else {
+            response.setStatusCode(HttpStatusCode.PARTIAL_CONTENT.getStatusCode());
+            response.setHeader(CONTENT_RANGE, RANGE_UNIT + " " + start + "-" + end + "/" + length);
+        }
+        String contentType = entity.getMediaContentType() != null ? entity.getMediaContentType()
+                : responseFormat.toContentTypeString();
+        response.setHeader(HttpHeader.CONTENT_TYPE, contentType);
+        response.setHeader(HttpHeader.CONTENT_LENGTH, String.valueOf(end - start + 1));
+        // Olingo copies the content to the servlet output in small chunks and closes it, which releases the file
+        try {
+            response.setContent(new SpooledFileRangeInputStream(spooled, start, end - start + 1));
+        } catch (IOException e) {
+            attachmentSpool.release(spooled);
+            throw e;
+        }
+    }
+
+    /**
+     * Take an ODataRequest for a single attachment entity and return its serialized properties in the ODataResponse.
+     * Invoked when the OData service is called with an HTTP GET operation for a single entity
+     *
+     * @param request an ODataRequest that has request body and headers information from client
+     * @param response an ODataResponse that will be set and sent to client
+     * @param uriInfo an UriInfo that describes the request URI
+     * @param responseFormat a ContentType represents the request body format
+     * @throws ODataApplicationException
+     */
+    @SneakyThrows
+    public void readEntity(ODataRequest request, ODataResponse response, UriInfo uriInfo, ContentType responseFormat)
+            throws ODataApplicationException {
+        UriResourceEntitySet uriResourceEntitySet = (UriResourceEntitySet) uriInfo.getUriResourceParts().get(0);
+        EdmEntitySet edmEntitySet = uriResourceEntitySet.getEntitySet();
+        Entity entity = getAttachmentEntity(uriResourceEntitySet);
+
+        ContextURL contextUrl = ContextURL.with().entitySet(edmEntitySet).suffix(ContextURL.Suffix.ENTITY).build();
+        EntitySerializerOptions opts = EntitySerializerOptions.with().contextURL(contextUrl).build();
+        SerializerResult serializerResult = odata.createSerializer(responseFormat)
+                .entity(serviceMetadata, edmEntitySet.getEntityType(), entity, opts);
+
+        response.setContent(serializerResult.getContent());
+        response.setStatusCode(HttpStatusCode.OK.getStatusCode());
+        response.setHeader(HttpHeader.CONTENT_TYPE, responseFormat.toContentTypeString());
+    }
+
+    public void createMediaEntity(ODataRequest request, ODataResponse response, UriInfo uriInfo,
+                                  ContentType requestFormat, ContentType responseFormat) throws ODataApplicationException {
+        throw notImplemented();
+    }
+
+    public void updateMediaEntity(ODataRequest request, ODataResponse response, UriInfo uriInfo,
+                                  ContentType requestFormat, ContentType responseFormat) throws ODataApplicationException {
+        throw notImplemented();
+    }
+
+    public void deleteMediaEntity(ODataRequest request, ODataResponse response, UriInfo uriInfo)
+            throws ODataApplicationException {
+        throw notImplemented();
+    }
+
+    public void createEntity(ODataRequest request, ODataResponse response, UriInfo uriInfo,
+                             ContentType requestFormat, ContentType responseFormat) throws ODataApplicationException {
+        throw notImplemented();
+    }
+
+    public void updateEntity(ODataRequest request, ODataResponse response, UriInfo uriInfo,
+                             ContentType requestFormat, ContentType responseFormat) throws ODataApplicationException {
+        throw notImplemented();
+    }
+
+    public void deleteEntity(ODataRequest request, ODataResponse response, UriInfo uriInfo)
+            throws ODataApplicationException {
+        throw notImplemented();
+    }
+
+    /**
+     * Return the attachment entity addressed by the given key predicates
+     * @param uriResourceEntitySet the addressed attachment entity set with its key predicates
+     * @return an Entity representing the attachment
+     * @throws ODataApplicationException if the entity set is not an attachment set or the attachment does not exist
+     */
+    private Entity getAttachmentEntity(UriResourceEntitySet uriResourceEntitySet)
+            throws ODataApplicationException, JSONException {
+        String setName = uriResourceEntitySet.getEntitySet().getName();
+        if (!SyncEdmProvider.isAttachmentSet(setName)) {
+            throw notImplemented();
+        }
+        String rowId = null;
+        String column = null;
+        for (UriParameter key : uriResourceEntitySet.getKeyPredicates()) {
+            if (key.getName().equals("RowId")) {
+                rowId = unquote(key.getText());
+            } else if (key.getName().equals("Column")) {
+                column = unquote(key.getText());
+            }
+        }
+        String tableId = SyncEdmProvider.getAttachmentTableId(setName);
+        List<String> columns = syncEdmProvider.getAttachmentColumns(tableId);
+        JSONObject row = columns.contains(column) ? syncDataConverter.getRow(tableId, rowId) : null;
+        if (row != null) {
+            for (Entity entity : formatAttachments(setName, row, columns)) {
+                if (entity.getProperty("Column").getValue().equals(column)) {
+                    return entity;
+                }
+            }
+        }
+        throw new ODataApplicationException("Attachment not found", HttpStatusCode.NOT_FOUND.getStatusCode(),
+                Locale.ENGLISH);
+    }
+
+    /**
+     * Take a row and return one attachment entity for each of its non-empty attachment columns
+     * @param setName the attachment entity set's name
+     * @param row a single row of the table in the type of JSONObject
+     * @param columns the table's attachment column names
+     * @return a list of entities representing the row's attachments
+     * @throws JSONException
+     */
+    static List<Entity> formatAttachments(String setName, JSONObject row, List<String> columns) throws JSONException {
+        List<Entity> entities = new ArrayList<>();
+        if (columns.isEmpty()) {
+            return entities;
+        }
+        String rowId = row.getString("id");
+        JSONArray rowValues = row.getJSONArray(SyncClient.ORDERED_COLUMNS_DEF);
+        for (String column : columns) {
+            String fileName = getRowValue(rowValues, column + "_uriFragment");
+            if (fileName == null || fileName.isEmpty()) {
+                continue;
+            }
+            String contentType = getRowValue(rowValues, column + "_contentType");
+            Entity e = new Entity();
+            e.addProperty(new Property(null, "RowId", ValueType.PRIMITIVE, rowId))
+                    .addProperty(new Property(null, "Column", ValueType.PRIMITIVE, column))
+                    .addProperty(new Property(null, "FileName", ValueType.PRIMITIVE, fileName))
+                    .addProperty(new Property(null, "ContentType", ValueType.PRIMITIVE, contentType));
+            e.setMediaContentType(contentType);
+            e.setMediaContentSource(URI.create(setName + "(RowId=" + quote(rowId) + ",Column=" + quote(column) + ")/$value"));
+            entities.add(e);
+        }
+        return entities;
+    }
+
+    /**
+     * Return a single column value of a row
+     * @param rowValues the row's ordered column values
+     * @param column the column name
+     * @return the column value, or null if the row has no such column
+     * @throws JSONException
+     */
+    private static String getRowValue(JSONArray rowValues, String column) throws JSONException {
+        for (int i = 0; i < rowValues.size(); i++) {
+            JSONObject rowKV = rowValues.getJSONObject(i);
+            if (rowKV.getString("column").equals(column)) {
+                return (String) rowKV.get("value");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse a Range header with a single byte range
+     * @param rangeHeader the Range header, may be null
+     * @param length the total length of the content
+     * @return null to serve the whole content, an empty array if the range cannot be satisfied,
+     * otherwise [first byte, last byte]
+     */
+    static long[] parseRange(String rangeHeader, long length) {
+        if (rangeHeader == null || !rangeHeader.startsWith(RANGE_UNIT + "=") || rangeHeader.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = rangeHeader.substring(RANGE_UNIT.length() + 1).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                // suffix range: the last n bytes
+                long suffix = Long.parseLong(spec.substring(1));
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                if (dash == spec.length() - 1) {
+                    end = length - 1;
+                } else {
+                    long last = Long.parseLong(spec.substring(dash + 1));
+                    if (last < start) {
+                        // a syntactically invalid range is ignored
+                        return null;
+                    }
+                    end = Math.min(length - 1, last);
+                }
+            }
+            if (start > end || start >= length) {
+                return new long[0];
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String quote(String value) {
+        return URLEncoder.encode("'" + value.replace("'", "''") + "'", StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    private static String unquote(String literal) {
+        if (literal != null && literal.length() >= 2 && literal.startsWith("'") && literal.endsWith("'")) {
+            return literal.substring(1, literal.length() - 1).replace("''", "'");
+        }
+        return literal;
+    }
+
+    private static ODataApplicationException notImplemented() {
+        return new ODataApplicationException("Not supported", HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(),
+                Locale.ENGLISH);
+    }
+
+    /**
+     * InputStream over a byte range of a spooled file, which releases the file once it is closed
+     */
+    private class SpooledFileRangeInputStream extends FilterInputStream {
+        private final AttachmentSpool.SpooledFile spooled;
+        private long remaining;
+        private boolean closed;
+
+        SpooledFileRangeInputStream(AttachmentSpool.SpooledFile spooled, long start, long length) throws IOException {
+            super(new FileInputStream(spooled.getFile()));
+            this.spooled = spooled;
+            this.remaining = length;
+            long skipped = 0;
+            while (skipped < start) {
+                long n = in.skip(start - skipped);
+                if (n <= 0) {
+                    break;
+                }
+                skipped += n;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!closed) {
+                    closed = true;
+                    attachmentSpool.release(spooled);
+                }
+            }
+        }
+    }
+}
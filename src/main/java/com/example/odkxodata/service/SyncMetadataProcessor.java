@@ -0,0 +1,198 @@
+package com.example.odkxodata.service;
+
+import lombok.extern.java.Log;
+import org.apache.olingo.commons.api.format.ContentType;
+import org.apache.olingo.commons.api.http.HttpHeader;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.*;
+import org.apache.olingo.server.api.processor.MetadataProcessor;
+import org.apache.olingo.server.api.processor.ServiceDocumentProcessor;
+import org.apache.olingo.server.api.serializer.SerializerException;
+import org.apache.olingo.server.api.serializer.SerializerResult;
+import org.apache.olingo.server.api.uri.UriInfo;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The class is an OData Processor that is responsible for the metadata document ($metadata) and the service document.
+ * Both are serialized once per format and kept as bytes in the tenant's DocumentCache for as long as the tenant's
+ * ServiceMetadata stays the same (it is rebuilt when the tables change, see SyncTenant.getServiceMetadata), so that
+ * repeated requests are answered without building or serializing the Entity Data Model again. They are served with
+ * Content-Length and an ETag, and If-None-Match is answered with 304 Not Modified
+ */
+@Log
+public class SyncMetadataProcessor implements MetadataProcessor, ServiceDocumentProcessor {
+    private final DocumentCache documentCache;
+
+    private OData odata;
+    private ServiceMetadata serviceMetadata;
+
+    public SyncMetadataProcessor(DocumentCache documentCache) {
+        this.documentCache = documentCache;
+    }
+
+    /**
+     * Initialize the processor with an instance of the OData object and store the context object
+     * @param odata an instance of the OData object
+     * @param serviceMetadata Entity Data Model and current service metadata
+     */
+    public void init(OData odata, ServiceMetadata serviceMetadata) {
+        this.odata = odata;
+        this.serviceMetadata = serviceMetadata;
+    }
+
+    /**
+     * Write the serialized metadata document into the ODataResponse.
+     * Invoked when the OData service is called with an HTTP GET operation for $metadata
+     *
+     * @param request an ODataRequest that has request body and headers information from client
+     * @param response an ODataResponse that will be set and sent to client
+     * @param uriInfo an UriInfo that describes the request URI
+     * @param responseFormat a ContentType represents the negotiated response format
+     * @throws ODataApplicationException
+     * @throws ODataLibraryException
+     */
+    public void readMetadata(ODataRequest request, ODataResponse response, UriInfo uriInfo, ContentType responseFormat)
+            throws ODataApplicationException, ODataLibraryException {
+        SerializedDocument document = documentCache.getDocument(serviceMetadata, false,
+                responseFormat.toContentTypeString(),
+                () -> odata.createSerializer(responseFormat).metadataDocument(serviceMetadata));
+        writeDocument(request, response, document, responseFormat);
+    }
+
+    /**
+     * Write the serialized service document into the ODataResponse.
+     * Invoked when the OData service is called with an HTTP GET operation for the service root
+     *
+     * @param request an ODataRequest that has request body and headers information from client
+     * @param response an ODataResponse that will be set and sent to client
+     * @param uriInfo an UriInfo that describes the request URI
+     * @param responseFormat a ContentType represents the negotiated response format
+     * @throws ODataApplicationException
+     * @throws ODataLibraryException
+     */
+    public void readServiceDocument(ODataRequest request, ODataResponse response, UriInfo uriInfo,
+                                    ContentType responseFormat) throws ODataApplicationException, ODataLibraryException {
+        // the service document holds absolute URLs, so it differs per base URI
+        String serviceRoot = request.getRawBaseUri();
+        SerializedDocument document = documentCache.getDocument(serviceMetadata, true,
+                responseFormat.toContentTypeString() + " " + serviceRoot,
+                () -> odata.createSerializer(responseFormat).serviceDocument(serviceMetadata, serviceRoot));
+        writeDocument(request, response, document, responseFormat);
+    }
+
+    /**
+     * Write a serialized document into the ODataResponse, or 304 Not Modified if the client already has it
+     * @param request an ODataRequest that has request body and headers information from client
+     * @param response an ODataResponse that will be set and sent to client
+     * @param document the serialized document
+     * @param responseFormat a ContentType represents the negotiated response format
+     * @throws ODataLibraryException if the If-Match header does not match
+     */
+    private void writeDocument(ODataRequest request, ODataResponse response, SerializedDocument document,
+                               ContentType responseFormat) throws ODataLibraryException {
+        response.setHeader(HttpHeader.ETAG, document.getETag());
+        if (odata.createETagHelper().checkReadPreconditions(document.getETag(),
+                request.getHeaders(HttpHeader.IF_MATCH), request.getHeaders(HttpHeader.IF_NONE_MATCH))) {
+            response.setStatusCode(HttpStatusCode.NOT_MODIFIED.getStatusCode());
+            return;
+        }
+        response.setContent(new ByteArrayInputStream(document.getContent()));
+        response.setStatusCode(HttpStatusCode.OK.getStatusCode());
+        response.setHeader(HttpHeader.CONTENT_TYPE, responseFormat.toContentTypeString());
+        response.setHeader(HttpHeader.CONTENT_LENGTH, String.valueOf(document.getContent().length));
+    }
+
+    /**
+     * Store the serialized documents of a tenant, which are shared by the processors of all its requests. A
+     * processor is created per request, since Olingo passes the ServiceMetadata to a processor through init
+     */
+    public static class DocumentCache {
+        // bound on the number of cached service documents, which are cached per base URI (e.g. Host header)
+        private static final int MAX_SERVICE_DOCUMENTS = 64;
+
+        // the serialized metadata documents by format, never evicted since there are only a few formats
+        private final Map<String, SerializedDocument> metadataDocuments = new HashMap<>();
+        // the serialized service documents by format and base URI, least recently used first
+        private final Map<String, SerializedDocument> serviceDocuments =
+                new LinkedHashMap<String, SerializedDocument>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SerializedDocument> eldest) {
+                return size() > MAX_SERVICE_DOCUMENTS;
+            }
+        };
+        // the ServiceMetadata both kinds of documents were serialized for
+        private ServiceMetadata documentsServiceMetadata;
+
+        /**
+         * Return the cached document with the given key, serializing it first if it is not cached for the given
+         * ServiceMetadata. A request with a newer ServiceMetadata drops the documents of the previous one
+         * @param serviceMetadata the ServiceMetadata of the request
+         * @param serviceDocument whether the document is a service document rather than a metadata document
+         * @param key the document's format, and base URI for service documents
+         * @param serializer the serializer of the document
+         * @return the serialized document
+         * @throws ODataApplicationException if the document could not be read
+         * @throws SerializerException
+         */
+        synchronized SerializedDocument getDocument(ServiceMetadata serviceMetadata, boolean serviceDocument,
+                                                    String key, DocumentSerializer serializer)
+                throws ODataApplicationException, SerializerException {
+            // the tenant only builds a new ServiceMetadata when a table definition changes
+            if (serviceMetadata != documentsServiceMetadata) {
+                metadataDocuments.clear();
+                serviceDocuments.clear();
+                documentsServiceMetadata = serviceMetadata;
+            }
+            Map<String, SerializedDocument> documents = serviceDocument ? serviceDocuments : metadataDocuments;
+            SerializedDocument document = documents.get(key);
+            if (document == null) {
+                log.info("Serialize document: " + key);
+                try {
+                    document = new SerializedDocument(StreamUtils.copyToByteArray(serializer.serialize().getContent()));
+                } catch (IOException e) {
+                    throw new ODataApplicationException("Failed to serialize " + key,
+                            HttpStatusCode.INTERNAL_SERVER_ERROR.getStatusCode(), Locale.ENGLISH, e);
+                }
+                documents.put(key, document);
+            }
+            return document;
+        }
+    }
+
+    /**
+     * Serializer of a single document
+     */
+    @FunctionalInterface
+    private interface DocumentSerializer {
+        SerializerResult serialize() throws SerializerException;
+    }
+
+    /**
+     * Store a serialized document together with its ETag, which is the hash of its content
+     */
+    private static class SerializedDocument {
+        private final byte[] content;
+        private final String eTag;
+
+        SerializedDocument(byte[] content) {
+            this.content = content;
+            this.eTag = "\"" + DigestUtils.md5DigestAsHex(content) + "\"";
+        }
+
+        byte[] getContent() {
+            return content;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+    }
+}
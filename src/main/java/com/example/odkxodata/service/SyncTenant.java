@@ -0,0 +1,149 @@
+package com.example.odkxodata.service;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.extern.java.Log;
+import org.apache.olingo.server.api.OData;
+import org.apache.olingo.server.api.ServiceMetadata;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class used to hold everything that belongs to a single Sync server (tenant): its SyncClient, caches, Entity Data
+ * Model and the state its processors share. Tenants never share any of them, so that a busy tenant cannot slow down
+ * the others
+ */
+@Getter
+@Log
+public class SyncTenant {
+    // tenant name, which is also the path prefix below server.root ("" for the root tenant)
+    private final String name;
+    private final SyncTenantProperties.TenantConfig config;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final SyncDataConverter syncDataConverter;
+    private final SyncEdmProvider edmProvider;
+    @Getter(AccessLevel.NONE)
+    private final boolean allowNullOutput;
+    // the downloaded attachments, shared by the SyncMediaEntityProcessors of all requests
+    @Getter(AccessLevel.NONE)
+    private final AttachmentSpool attachmentSpool;
+    // the serialized $metadata and service documents, shared by the SyncMetadataProcessors of all requests
+    @Getter(AccessLevel.NONE)
+    private final SyncMetadataProcessor.DocumentCache documentCache = new SyncMetadataProcessor.DocumentCache();
+    // bulkhead that limits the number of requests processed concurrently for this tenant
+    private final Semaphore bulkhead;
+    // the ServiceMetadata built from the edmProvider, and the tables it was built for
+    @Getter(AccessLevel.NONE)
+    private ServiceMetadata serviceMetadata;
+    @Getter(AccessLevel.NONE)
+    private List<SyncDataConverter.TableInfo> serviceMetadataTableInfos;
+    // background thread that prefetches the hot tables of users, one table at a time
+    @Getter(AccessLevel.NONE)
+    private final ExecutorService prefetcher;
+
+    public SyncTenant(String name, SyncTenantProperties.TenantConfig config, String namespace, String containerName,
+                      boolean allowNullOutput) {
+        this.name = name;
+        this.config = config;
+        this.limiter = new AdaptiveConcurrencyLimiter(config.getMaxUpstreamConcurrency(), config.getUpstreamQueueSize(),
+                config.getUpstreamTimeout());
+        this.syncDataConverter = new SyncDataConverter(config.getUrl(), config.getAppId(), limiter,
+                config.getMaxSyncClients(), config.getTablesTtl(), config.getAttachmentTimeout());
+        this.edmProvider = new SyncEdmProvider(namespace, containerName, syncDataConverter, config.getRelations());
+        this.allowNullOutput = allowNullOutput;
+        this.attachmentSpool = new AttachmentSpool(config.getAttachmentSpoolSize());
+        this.bulkhead = new Semaphore(config.getMaxConcurrentRequests());
+        this.prefetcher = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(config.getMaxSyncClients()), r -> {
+            Thread thread = new Thread(r, "sync-prefetch-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Prefetch the rows of the hot tables with the given user's SyncClient in the background. Rows are cached per
+     * user, since the Sync server only returns the rows a user may access, so they are prefetched for each user
+     * rather than for a service account. Prefetches that do not fit the queue are skipped
+     * @param credentials user credentials details in the form of [username, password]
+     */
+    public void prefetchHotTables(String[] credentials) {
+        if (config.getHotTables().isEmpty()) {
+            return;
+        }
+        try {
+            prefetcher.execute(() -> {
+                for (String tableId : config.getHotTables()) {
+                    log.info("Prefetch table " + tableId + " of tenant: " + name);
+                    syncDataConverter.initSyncClient(credentials);
+                    try {
+                        if (syncDataConverter.getRows(tableId) == null) {
+                            log.warning("Failed to prefetch table " + tableId);
+                        }
+                    } catch (RuntimeException e) {
+                        log.warning("Failed to prefetch table " + tableId + ": " + e);
+                    } finally {
+                        syncDataConverter.releaseSyncClient();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warning("Skip prefetch of hot tables of tenant: " + name);
+        }
+    }
+
+    /**
+     * Return the tenant's ServiceMetadata, which is only rebuilt when the tenant's tables change so that the
+     * Entity Data Model built by Olingo is reused across requests
+     * @param odata an instance of the OData object
+     * @return the ServiceMetadata for the tenant's current tables
+     */
+    public synchronized ServiceMetadata getServiceMetadata(OData odata) {
+        List<SyncDataConverter.TableInfo> tableInfos = syncDataConverter.getTables();
+        if (serviceMetadata == null || !tableInfos.equals(serviceMetadataTableInfos)) {
+            serviceMetadata = odata.createServiceMetadata(edmProvider, new ArrayList<>());
+            serviceMetadataTableInfos = tableInfos;
+        }
+        return serviceMetadata;
+    }
+
+    /**
+     * Create the SyncEntityCollectionProcessor of a single request. Processors are created per request, since Olingo
+     * passes the request's ServiceMetadata to a processor through init
+     * @return a new SyncEntityCollectionProcessor
+     */
+    public SyncEntityCollectionProcessor createEntityCollectionProcessor() {
+        return new SyncEntityCollectionProcessor(syncDataConverter, edmProvider, allowNullOutput);
+    }
+
+    /**
+     * Create the SyncMediaEntityProcessor of a single request, which serves attachments through the tenant's spool
+     * @return a new SyncMediaEntityProcessor
+     */
+    public SyncMediaEntityProcessor createMediaEntityProcessor() {
+        return new SyncMediaEntityProcessor(syncDataConverter, edmProvider, attachmentSpool);
+    }
+
+    /**
+     * Create the SyncMetadataProcessor of a single request, which serves the documents from the tenant's cache
+     * @return a new SyncMetadataProcessor
+     */
+    public SyncMetadataProcessor createMetadataProcessor() {
+        return new SyncMetadataProcessor(documentCache);
+    }
+
+    /**
+     * Return the path prefix of the tenant below server.root
+     * @return "" for the root tenant, otherwise "/" followed by the tenant name
+     */
+    public String getPathPrefix() {
+        return name.isEmpty() ? "" : "/" + name;
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.odkxodata.service;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class used to bind the Sync servers that the service is able to serve. The server configured by `odk.server.*`
+ * is served directly below `server.root`, and every server configured by `odk.tenants.{name}.*` is served below
+ * `server.root/{name}`
+ */
+@Component
+@ConfigurationProperties(prefix = "odk")
+@Data
+public class SyncTenantProperties {
+    // the Sync server served directly below server.root
+    private TenantConfig server;
+    // the map that maps from tenant name (path prefix) to its Sync server
+    private Map<String, TenantConfig> tenants = new LinkedHashMap<>();
+
+    @Data
+    /**
+     * Store the information about a single Sync server and the resources reserved for it
+     */
+    public static class TenantConfig {
+        // ODK-X SyncEndpoint server url
+        private String url;
+        // ODK-X application id (e.g. odktables/default)
+        private String appId;
+        // maximum number of requests processed concurrently for this tenant
+        private int maxConcurrentRequests = 16;
+        // upper bound of the adaptive limit of concurrent calls to the Sync server
+        private int maxUpstreamConcurrency = 8;
+        // maximum number of calls waiting for the Sync server before new calls are rejected
+        private int upstreamQueueSize = 32;
+        // time in milliseconds a single call to the Sync server may take before its caller gives up
+        private long upstreamTimeout = 30000;
+        // maximum number of users whose SyncClient is kept, the least recently used one is dropped first
+        private int maxSyncClients = 64;
+        // time in milliseconds after which the tables and their schemaETags are retrieved again
+        private long tablesTtl = 60000;
+        // maximum number of bytes of downloaded attachments kept for further (range) requests
+        private long attachmentSpoolSize = 256L * 1024 * 1024;
+        // time in milliseconds an attachment download may take, regardless of upstreamTimeout and odk.request.timeout
+        private long attachmentTimeout = 600000;
+        // parent/child relations between tables, exposed as navigation properties
+        private List<Relation> relations = new ArrayList<>();
+        // service account used to warm up the tenant on startup, no warm-up if it is not set
+        private String warmupUsername;
+        private String warmupPassword;
+        // tables whose rows are prefetched for each user on their first request
+        private List<String> hotTables = new ArrayList<>();
+        // service account used to poll the dataETags of subscribed tables, no $changes if it is not set
+        private String changesUsername;
+        private String changesPassword;
+    }
+
+    @Data
+    /**
+     * Store the information about a parent/child relation between two tables, where each child row refers to its
+     * parent row by holding the parent's row id in a column
+     */
+    public static class Relation {
+        // parent table id
+        private String parent;
+        // child table id
+        private String child;
+        // child table column that holds the parent's row id
+        private String column;
+    }
+}
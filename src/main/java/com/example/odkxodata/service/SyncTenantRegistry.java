@@ -0,0 +1,105 @@
+package com.example.odkxodata.service;
+
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class used to create one SyncTenant for each configured Sync server and to route a request path to its tenant
+ */
+@Component
+@Log
+public class SyncTenantRegistry {
+    // the map that maps from tenant name to tenant, the root tenant's name is ""
+    private final Map<String, SyncTenant> tenants = new LinkedHashMap<>();
+
+    public SyncTenantRegistry(SyncTenantProperties properties,
+                              @Value("${odk.namespace}") String namespace,
+                              @Value("${odk.container}") String containerName,
+                              @Value("${odk.nulloutput.allow}") boolean allowNullOutput) {
+        SyncTenantProperties.TenantConfig rootConfig = properties.getServer();
+        if (rootConfig != null && rootConfig.getUrl() != null) {
+            tenants.put("", new SyncTenant("", rootConfig, namespace, containerName, allowNullOutput));
+        }
+        for (Map.Entry<String, SyncTenantProperties.TenantConfig> e : properties.getTenants().entrySet()) {
+            checkTenantName(e.getKey(), rootConfig);
+            log.info("Register tenant: " + e.getKey() + " -> " + e.getValue().getUrl());
+            tenants.put(e.getKey(), new SyncTenant(e.getKey(), e.getValue(), namespace, containerName, allowNullOutput));
+        }
+    }
+
+    /**
+     * Reject a tenant name that would hide a resource of the root tenant, since the first path segment selects a
+     * named tenant before the root tenant is considered
+     * @param name the tenant name
+     * @param rootConfig the root tenant's configuration, may be null
+     * @throws IllegalStateException if the name collides with a resource of the root tenant
+     */
+    private void checkTenantName(String name, SyncTenantProperties.TenantConfig rootConfig) {
+        if (name.isEmpty() || name.startsWith("$") || name.contains("/") || name.contains("(")) {
+            throw new IllegalStateException("Invalid tenant name: '" + name + "'");
+        }
+        if (rootConfig == null || rootConfig.getUrl() == null) {
+            return;
+        }
+        Set<String> rootTables = new HashSet<>(rootConfig.getHotTables());
+        for (SyncTenantProperties.Relation relation : rootConfig.getRelations()) {
+            rootTables.add(relation.getParent());
+            rootTables.add(relation.getChild());
+        }
+        for (String tableId : rootTables) {
+            if (name.equals(tableId) || name.equals(tableId + SyncEdmProvider.ATTACHMENTS_SUFFIX)) {
+                throw new IllegalStateException("Tenant name '" + name + "' hides the root tenant's entity set " + name);
+            }
+        }
+    }
+
+    /**
+     * Check that no named tenant hides an entity set of the root tenant's tables, which are only known once they
+     * were retrieved from the root tenant's Sync server
+     * @param tableInfos the root tenant's tables
+     * @throws IllegalStateException if a tenant name collides with an entity set of the root tenant
+     */
+    public void checkRootTables(List<SyncDataConverter.TableInfo> tableInfos) {
+        for (SyncDataConverter.TableInfo tableInfo : tableInfos) {
+            String tableId = tableInfo.getTableId();
+            for (String name : new String[]{tableId, tableId + SyncEdmProvider.ATTACHMENTS_SUFFIX}) {
+                if (!name.isEmpty() && tenants.containsKey(name)) {
+                    throw new IllegalStateException("Tenant name '" + name + "' hides the root tenant's entity set "
+                            + name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the tenant that serves the given path, where the path is relative to server.root.
+     * The first path segment selects a named tenant, otherwise the root tenant serves the path
+     * @param path request path below server.root (e.g. /household or /tenant/household)
+     * @return the SyncTenant serving the path, or null if no tenant serves it
+     */
+    public SyncTenant resolve(String path) {
+        String trimmed = path.startsWith("/") ? path.substring(1) : path;
+        int end = trimmed.indexOf('/');
+        String firstSegment = end >= 0 ? trimmed.substring(0, end) : trimmed;
+        if (!firstSegment.isEmpty() && tenants.containsKey(firstSegment)) {
+            return tenants.get(firstSegment);
+        }
+        return tenants.get("");
+    }
+
+    /**
+     * Return all configured tenants
+     * @return all tenants in the order they are configured
+     */
+    public Collection<SyncTenant> getTenants() {
+        return tenants.values();
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.odkxodata.service;
+
+import lombok.extern.java.Log;
+import org.apache.olingo.server.api.OData;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Class used to warm up every tenant that has a service account on application startup: it initializes the
+ * SyncClient, retrieves the tables and pre-builds the Entity Data Model and ServiceMetadata. Rows are not prefetched
+ * here, since the Sync server only returns the rows the service account may access; the hot tables are prefetched
+ * per user on their first request instead (SyncTenant.prefetchHotTables). Spring Boot only reports the application
+ * as ready (/actuator/health/readiness) once all ApplicationRunners finished, so traffic is never routed to a cold
+ * instance
+ */
+@Component
+@Log
+public class SyncWarmup implements ApplicationRunner {
+    private final SyncTenantRegistry tenantRegistry;
+
+    public SyncWarmup(SyncTenantRegistry tenantRegistry) {
+        this.tenantRegistry = tenantRegistry;
+    }
+
+    /**
+     * Warm up all tenants, a failing tenant is logged and skipped so that it cannot keep the service from starting
+     * @param args application arguments
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        for (SyncTenant tenant : tenantRegistry.getTenants()) {
+            SyncTenantProperties.TenantConfig config = tenant.getConfig();
+            if (config.getWarmupUsername() == null) {
+                continue;
+            }
+            log.info("Warm up tenant: " + tenant.getName());
+            String[] credentials = new String[]{config.getWarmupUsername(), config.getWarmupPassword()};
+            SyncDataConverter syncDataConverter = tenant.getSyncDataConverter();
+            List<SyncDataConverter.TableInfo> tableInfos;
+            try {
+                syncDataConverter.initSyncClient(credentials);
+                tableInfos = syncDataConverter.getTables();
+                tenant.getEdmProvider().updateTableIds(tableInfos);
+                // building the schemas retrieves every table definition and builds every entity type
+                tenant.getServiceMetadata(OData.newInstance()).getEdm().getSchemas();
+            } catch (RuntimeException e) {
+                log.warning("Failed to warm up tenant " + tenant.getName() + ": " + e);
+                continue;
+            } finally {
+                syncDataConverter.releaseSyncClient();
+            }
+            if (tenant.getName().isEmpty()) {
+                // a misconfigured tenant name keeps the service from starting instead of hiding a table
+                tenantRegistry.checkRootTables(tableInfos);
+            }
+        }
+        log.info("Warm up finished");
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.odkxodata.service;
+
+import lombok.Getter;
+
+/**
+ * Exception thrown when a call to the Sync server is rejected to protect it from overload. The request should be
+ * answered with 503 Service Unavailable and a Retry-After header
+ */
+@Getter
+public class UpstreamOverloadedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    // number of seconds the client should wait before retrying
+    private final long retryAfterSeconds;
+
+    public UpstreamOverloadedException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.odkxodata.service;
+
+import org.apache.wink.json4j.JSONException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the AdaptiveConcurrencyLimiter, which do not need a Sync server
+ */
+class AdaptiveConcurrencyLimiterTests {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final CountDownLatch unblock = new CountDownLatch(1);
+
+    @AfterEach
+    public void tearDown() {
+        unblock.countDown();
+        executor.shutdownNow();
+        RequestDeadline.clear();
+    }
+
+    /**
+     * Test that the limit starts at half of its maximum
+     */
+    @Test
+    public void testInitialLimit() {
+        Assertions.assertEquals(4, new AdaptiveConcurrencyLimiter(8, 4, 1000).getLimit());
+        Assertions.assertEquals(1, new AdaptiveConcurrencyLimiter(1, 4, 1000).getLimit());
+    }
+
+    /**
+     * Test that failing calls shrink the limit, but never below one call
+     */
+    @Test
+    public void testFailuresShrinkLimit() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, 4, 1000);
+        for (int i = 0; i < 50; i++) {
+            Assertions.assertThrows(IOException.class, () -> limiter.call(() -> {
+                throw new IOException("failed");
+            }));
+        }
+        Assertions.assertEquals(1, limiter.getLimit());
+    }
+
+    /**
+     * Test that failures which say nothing about congestion, such as the error page of invalid credentials, do not
+     * shrink the limit
+     */
+    @Test
+    public void testClientErrorsKeepLimit() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, 4, 1000);
+        for (int i = 0; i < 50; i++) {
+            Assertions.assertThrows(JSONException.class, () -> limiter.call(() -> {
+                throw new JSONException("Unauthorized");
+            }));
+            Assertions.assertThrows(IllegalStateException.class, () -> limiter.call(() -> {
+                throw new IllegalStateException("failed");
+            }, false));
+        }
+        Assertions.assertEquals(4, limiter.getLimit());
+    }
+
+    /**
+     * Test that slow calls whose latency is not measured do not shrink the limit
+     * @throws Exception
+     */
+    @Test
+    public void testUnmeasuredCallsKeepLimit() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, 4, 1000);
+        limiter.call(() -> null);
+        for (int i = 0; i < 5; i++) {
+            limiter.call(() -> {
+                sleep(20);
+                return null;
+            }, false);
+        }
+        Assertions.assertEquals(4, limiter.getLimit());
+    }
+
+    /**
+     * Test that a call is rejected right away once all slots are taken and the queue is full
+     * @throws Exception
+     */
+    @Test
+    public void testRejectWhenQueueFull() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 0, 5000);
+        CountDownLatch started = new CountDownLatch(1);
+        Future<Object> blocked = executor.submit(() -> limiter.call(() -> {
+            started.countDown();
+            await(unblock);
+            return null;
+        }));
+        Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Assertions.assertThrows(UpstreamOverloadedException.class, () -> limiter.call(() -> null));
+        unblock.countDown();
+        blocked.get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Test that a queued call is rejected once the request deadline passed
+     * @throws Exception
+     */
+    @Test
+    public void testRejectAfterRequestDeadline() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 5000);
+        CountDownLatch started = new CountDownLatch(1);
+        executor.submit(() -> limiter.call(() -> {
+            started.countDown();
+            await(unblock);
+            return null;
+        }));
+        Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+        RequestDeadline.start(50);
+        Assertions.assertThrows(UpstreamOverloadedException.class, () -> limiter.call(() -> null));
+    }
+
+    /**
+     * Test that a hung call times out and gives its slot back
+     * @throws Exception
+     */
+    @Test
+    public void testHungCallTimesOut() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 0, 100);
+        long start = System.nanoTime();
+        Assertions.assertThrows(UpstreamOverloadedException.class, () -> limiter.call(() -> {
+            await(unblock);
+            return null;
+        }));
+        Assertions.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        // the only slot is free again although the hung call is still running
+        Assertions.assertEquals("ok", limiter.call(() -> "ok"));
+    }
+
+    /**
+     * Test that a transfer may take longer than the call timeout and the request deadline
+     * @throws Exception
+     */
+    @Test
+    public void testTransferOutlivesDeadline() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 0, 50);
+        RequestDeadline.start(50);
+        Assertions.assertEquals("ok", limiter.transfer(() -> {
+            sleep(200);
+            return "ok";
+        }, 5000));
+    }
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.odkxodata.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the AttachmentSpool, which do not need a Sync server
+ */
+class AttachmentSpoolTests {
+
+    /**
+     * Test that an attachment is only downloaded once while it is spooled
+     */
+    @Test
+    public void testSingleDownload() {
+        AttachmentSpool spool = new AttachmentSpool(1000);
+        AtomicInteger downloads = new AtomicInteger();
+        AttachmentSpool.Loader loader = () -> {
+            downloads.incrementAndGet();
+            return createFile(10);
+        };
+        AttachmentSpool.SpooledFile first = spool.acquire("a", loader);
+        AttachmentSpool.SpooledFile second = spool.acquire("a", loader);
+        Assertions.assertSame(first.getFile(), second.getFile());
+        Assertions.assertEquals(1, downloads.get());
+        spool.release(first);
+        spool.release(second);
+        Assertions.assertTrue(first.getFile().delete());
+    }
+
+    /**
+     * Test that a failed download is not spooled
+     */
+    @Test
+    public void testFailedDownload() {
+        AttachmentSpool spool = new AttachmentSpool(1000);
+        Assertions.assertNull(spool.acquire("a", () -> null));
+        AttachmentSpool.SpooledFile spooled = spool.acquire("a", () -> createFile(10));
+        Assertions.assertNotNull(spooled);
+        spool.release(spooled);
+        Assertions.assertTrue(spooled.getFile().delete());
+    }
+
+    /**
+     * Test that a loader that throws leaves nothing behind, so that a later download of the same attachment is
+     * spooled and deleted once evicted
+     */
+    @Test
+    public void testThrowingLoader() {
+        AttachmentSpool spool = new AttachmentSpool(15);
+        Assertions.assertThrows(UpstreamOverloadedException.class, () -> spool.acquire("a", () -> {
+            throw new UpstreamOverloadedException("Sync server call timed out", 1);
+        }));
+        AttachmentSpool.SpooledFile first = spool.acquire("a", () -> createFile(10));
+        spool.release(first);
+        AttachmentSpool.SpooledFile second = spool.acquire("b", () -> createFile(10));
+        Assertions.assertFalse(first.getFile().exists());
+        spool.release(second);
+        Assertions.assertTrue(second.getFile().delete());
+    }
+
+    /**
+     * Test that evicted files are deleted, but only once their last reader released them
+     */
+    @Test
+    public void testEviction() {
+        AttachmentSpool spool = new AttachmentSpool(15);
+        AttachmentSpool.SpooledFile first = spool.acquire("a", () -> createFile(10));
+        AttachmentSpool.SpooledFile second = spool.acquire("b", () -> createFile(10));
+        // the first file is evicted but still being read
+        Assertions.assertTrue(first.getFile().exists());
+        spool.release(first);
+        Assertions.assertFalse(first.getFile().exists());
+        spool.release(second);
+        Assertions.assertTrue(second.getFile().exists());
+        Assertions.assertTrue(second.getFile().delete());
+    }
+
+    private static File createFile(int length) {
+        try {
+            File file = Files.createTempFile("odk-attachment-test-", null).toFile();
+            Files.write(file.toPath(), new byte[length]);
+            return file;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
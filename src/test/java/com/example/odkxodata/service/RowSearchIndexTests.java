@@ -0,0 +1,104 @@
+package com.example.odkxodata.service;
+
+import org.apache.olingo.server.api.uri.queryoption.search.SearchExpression;
+import org.apache.olingo.server.core.uri.parser.search.SearchParser;
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opendatakit.sync.client.SyncClient;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests for the RowSearchIndex, which do not need a Sync server
+ */
+class RowSearchIndexTests {
+    private RowSearchIndex index;
+
+    @BeforeEach
+    public void setUp() throws JSONException {
+        index = new RowSearchIndex(new HashSet<>(Arrays.asList("name", "street")));
+        index.update("1", createRow("Alice", "Main Street", "open"));
+        index.update("2", createRow("Bob", "Main Road", "closed"));
+        index.update("3", createRow("Carol", "Side Street", "open"));
+    }
+
+    /**
+     * Test that terms are matched case-insensitively against the indexed columns only
+     */
+    @Test
+    public void testLookup() {
+        Assertions.assertEquals(rowIds("1", "2"), index.lookup("MAIN"));
+        Assertions.assertEquals(rowIds("1", "3"), index.lookup("street"));
+        // the status column is not indexed
+        Assertions.assertEquals(rowIds(), index.lookup("open"));
+        // a phrase matches rows containing all of its words
+        Assertions.assertEquals(rowIds("1"), index.lookup("main street"));
+        Assertions.assertEquals(rowIds(), index.lookup(""));
+    }
+
+    /**
+     * Test that an updated row is only found by its new values, and a removed row is not found anymore
+     * @throws Exception
+     */
+    @Test
+    public void testUpdateAndRemove() throws Exception {
+        index.update("1", createRow("Alice", "Hill Road", "open"));
+        Assertions.assertEquals(rowIds("2"), index.lookup("main"));
+        Assertions.assertEquals(rowIds("1", "2"), index.lookup("road"));
+        index.remove("2");
+        Assertions.assertEquals(rowIds("1"), index.lookup("road"));
+        Assertions.assertEquals(rowIds("1", "3"), index.getRowIds());
+        // removing an unknown row is a no-op
+        index.remove("4");
+        Assertions.assertEquals(rowIds("1", "3"), index.getRowIds());
+    }
+
+    /**
+     * Test the evaluation of AND, OR and NOT in $search expressions
+     * @throws Exception
+     */
+    @Test
+    public void testSearch() throws Exception {
+        Assertions.assertEquals(rowIds("1"), index.search(parse("main AND street")));
+        Assertions.assertEquals(rowIds("1"), index.search(parse("main street")));
+        Assertions.assertEquals(rowIds("1", "2", "3"), index.search(parse("main OR street")));
+        Assertions.assertEquals(rowIds("3"), index.search(parse("NOT main")));
+        Assertions.assertEquals(rowIds("2"), index.search(parse("main AND NOT street")));
+        Assertions.assertEquals(rowIds("2", "3"), index.search(parse("bob OR carol")));
+        Assertions.assertEquals(rowIds("1"), index.search(parse("\"main street\"")));
+    }
+
+    private static SearchExpression parse(String search) throws Exception {
+        return new SearchParser().parse(search).getSearchExpression();
+    }
+
+    private static Set<String> rowIds(String... rowIds) {
+        Set<String> result = new HashSet<>();
+        Collections.addAll(result, rowIds);
+        return result;
+    }
+
+    private static JSONObject createRow(String name, String street, String status) throws JSONException {
+        JSONArray values = new JSONArray();
+        values.add(createValue("name", name));
+        values.add(createValue("street", street));
+        values.add(createValue("status", status));
+        JSONObject row = new JSONObject();
+        row.put(SyncClient.ORDERED_COLUMNS_DEF, values);
+        return row;
+    }
+
+    private static JSONObject createValue(String column, String value) throws JSONException {
+        JSONObject rowKV = new JSONObject();
+        rowKV.put("column", column);
+        rowKV.put("value", value);
+        return rowKV;
+    }
+}
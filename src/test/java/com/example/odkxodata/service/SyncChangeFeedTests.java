@@ -0,0 +1,267 @@
+package com.example.odkxodata.service;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opendatakit.sync.client.SyncClient;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the subscriptions and polls of the SyncChangeFeed, which do not need a Sync server
+ */
+class SyncChangeFeedTests {
+    private static final String TABLE_ID = "household";
+
+    private SyncTenant tenant;
+    private FakeSyncDataConverter syncDataConverter;
+    private List<RecordingEmitter> emitters;
+    private SyncChangeFeed changeFeed;
+
+    @BeforeEach
+    public void setUp() {
+        SyncTenantProperties.TenantConfig config = new SyncTenantProperties.TenantConfig();
+        config.setUrl("http://localhost");
+        config.setAppId("default");
+        config.setChangesUsername("changes");
+        config.setChangesPassword("secret");
+        tenant = new SyncTenant("other", config, "OData", "Container", false);
+        syncDataConverter = new FakeSyncDataConverter(tenant.getLimiter());
+        emitters = new CopyOnWriteArrayList<>();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (changeFeed != null) {
+            changeFeed.stop();
+        }
+    }
+
+    /**
+     * Test that changes made between the subscription and the first poll are sent, and that an unchanged dataETag
+     * does not fetch any changes
+     * @throws Exception
+     */
+    @Test
+    public void testChangesSinceSubscription() throws Exception {
+        start(16);
+        changeFeed.subscribe(tenant, TABLE_ID, credentials("alice"), "e1");
+        syncDataConverter.change("e1", "e2", 2);
+        changeFeed.poll(tenant);
+        Assertions.assertEquals(2, emitters.get(0).awaitEvent().size());
+        Assertions.assertEquals(Collections.singletonList("alice:e1"), syncDataConverter.changeRequests);
+
+        changeFeed.poll(tenant);
+        Assertions.assertEquals(1, syncDataConverter.changeRequests.size());
+        Assertions.assertFalse(emitters.get(0).completed);
+    }
+
+    /**
+     * Test that all rows changed since the previous poll are sent as a single event, so that a sync of many rows
+     * does not overflow the queue of a subscriber
+     * @throws Exception
+     */
+    @Test
+    public void testSingleEventPerPoll() throws Exception {
+        start(1);
+        changeFeed.subscribe(tenant, TABLE_ID, credentials("alice"), "e1");
+        syncDataConverter.change("e1", "e2", 1000);
+        changeFeed.poll(tenant);
+        JSONArray changes = emitters.get(0).awaitEvent();
+        Assertions.assertEquals(1000, changes.size());
+        Assertions.assertEquals("row0", changes.getJSONObject(0).getString("id"));
+        Assertions.assertFalse(emitters.get(0).completed);
+    }
+
+    /**
+     * Test that the changes are fetched once per distinct credentials, and sent to every subscriber
+     * @throws Exception
+     */
+    @Test
+    public void testSameCredentialsShareFetch() throws Exception {
+        start(16);
+        changeFeed.subscribe(tenant, TABLE_ID, credentials("alice"), "e1");
+        changeFeed.subscribe(tenant, TABLE_ID, credentials("alice"), "e1");
+        changeFeed.subscribe(tenant, TABLE_ID, credentials("bob"), "e1");
+        syncDataConverter.change("e1", "e2", 3);
+        changeFeed.poll(tenant);
+        for (RecordingEmitter emitter : emitters) {
+            Assertions.assertEquals(3, emitter.awaitEvent().size());
+        }
+        List<String> changeRequests = new ArrayList<>(syncDataConverter.changeRequests);
+        Collections.sort(changeRequests);
+        Assertions.assertEquals(Arrays.asList("alice:e1", "bob:e1"), changeRequests);
+    }
+
+    /**
+     * Test that a subscriber whose queue is full is dropped, and that its table is not polled anymore
+     * @throws Exception
+     */
+    @Test
+    public void testDropSlowSubscriber() throws Exception {
+        start(1);
+        changeFeed.subscribe(tenant, TABLE_ID, credentials("alice"), "e1");
+        RecordingEmitter emitter = emitters.get(0);
+        emitter.release = new CountDownLatch(1);
+        syncDataConverter.change("e1", "e2", 1);
+        changeFeed.poll(tenant);
+        // the sender thread is stuck sending the first event
+        Assertions.assertTrue(emitter.sending.await(5, TimeUnit.SECONDS));
+        syncDataConverter.change("e2", "e3", 1);
+        changeFeed.poll(tenant);
+        Assertions.assertFalse(emitter.completed);
+        syncDataConverter.change("e3", "e4", 1);
+        changeFeed.poll(tenant);
+        Assertions.assertTrue(emitter.completed);
+        emitter.release.countDown();
+
+        syncDataConverter.change("e4", "e5", 1);
+        changeFeed.poll(tenant);
+        Assertions.assertEquals(3, syncDataConverter.changeRequests.size());
+    }
+
+    private void start(int queueSize) {
+        // the tests poll themselves, the pollers never do
+        changeFeed = new SyncChangeFeed(3_600_000, 3_600_000, 10, 30000, 1, queueSize) {
+            @Override
+            SseEmitter createEmitter() {
+                RecordingEmitter emitter = new RecordingEmitter();
+                emitters.add(emitter);
+                return emitter;
+            }
+
+            @Override
+            SyncDataConverter createSyncDataConverter(SyncTenant tenant) {
+                return syncDataConverter;
+            }
+        };
+        changeFeed.start();
+    }
+
+    private static String[] credentials(String username) {
+        return new String[]{username, "password"};
+    }
+
+    /**
+     * SyncDataConverter that serves the dataETag and changed rows set by the test, and records the change requests
+     */
+    private static class FakeSyncDataConverter extends SyncDataConverter {
+        private final List<String> changeRequests = new CopyOnWriteArrayList<>();
+        // the map that maps from dataETag to the rows changed since
+        private final Map<String, JSONArray> changes = new HashMap<>();
+        private volatile String dataETag = "e1";
+        private String username;
+
+        FakeSyncDataConverter(AdaptiveConcurrencyLimiter limiter) {
+            super("http://localhost", "default", limiter, 8, 60000, 60000);
+        }
+
+        void change(String sinceDataETag, String newDataETag, int rowCount) throws JSONException {
+            JSONArray rows = new JSONArray();
+            for (int i = 0; i < rowCount; i++) {
+                JSONObject row = new JSONObject();
+                row.put(SyncClient.ID_JSON, "row" + i);
+                row.put(SyncClient.ROW_ETAG_JSON, newDataETag + "-" + i);
+                rows.add(row);
+            }
+            changes.put(sinceDataETag, rows);
+            dataETag = newDataETag;
+        }
+
+        @Override
+        public void initSyncClient(String[] credentials) {
+            username = credentials[0];
+        }
+
+        @Override
+        public boolean keepSyncClient() {
+            return false;
+        }
+
+        @Override
+        public void releaseSyncClient() {
+            username = null;
+        }
+
+        @Override
+        public List<TableInfo> getTables() {
+            return Collections.singletonList(new TableInfo(TABLE_ID, "schema"));
+        }
+
+        @Override
+        public String getDataETag(String tableId) {
+            return dataETag;
+        }
+
+        @Override
+        public TableChanges getChangesSince(String tableId, String sinceDataETag) {
+            changeRequests.add(username + ":" + sinceDataETag);
+            return new TableChanges(changes.getOrDefault(sinceDataETag, new JSONArray()), dataETag);
+        }
+    }
+
+    /**
+     * SseEmitter that records the data of the events sent to it, and whether it was completed
+     */
+    private static class RecordingEmitter extends SseEmitter {
+        private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        private final List<Runnable> completionCallbacks = new CopyOnWriteArrayList<>();
+        private final CountDownLatch sending = new CountDownLatch(1);
+        // when set, sending an event waits for it
+        private volatile CountDownLatch release;
+        private volatile boolean completed;
+
+        @Override
+        public void send(SseEventBuilder builder) throws IOException {
+            sending.countDown();
+            if (release != null) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            for (ResponseBodyEmitter.DataWithMediaType data : builder.build()) {
+                if (MediaType.APPLICATION_JSON.equals(data.getMediaType())) {
+                    events.add((String) data.getData());
+                }
+            }
+        }
+
+        @Override
+        public synchronized void onCompletion(Runnable callback) {
+            completionCallbacks.add(callback);
+        }
+
+        @Override
+        public synchronized void complete() {
+            completed = true;
+            // without a response the emitter's own callbacks are never run
+            completionCallbacks.forEach(Runnable::run);
+        }
+
+        JSONArray awaitEvent() throws Exception {
+            String data = events.poll(5, TimeUnit.SECONDS);
+            Assertions.assertNotNull(data, "no event was sent");
+            return new JSONArray(data);
+        }
+    }
+}
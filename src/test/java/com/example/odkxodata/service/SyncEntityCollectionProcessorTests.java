@@ -0,0 +1,92 @@
+package com.example.odkxodata.service;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.EntityCollection;
+import org.apache.olingo.commons.api.data.Link;
+import org.apache.olingo.commons.api.data.Property;
+import org.apache.olingo.commons.api.data.ValueType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Tests for the $expand hash join of the SyncEntityCollectionProcessor, which do not need a Sync server
+ */
+class SyncEntityCollectionProcessorTests {
+
+    /**
+     * Test that each parent gets the collection of its children, which is empty for a parent without children
+     */
+    @Test
+    public void testJoinParentToChildren() {
+        EntityCollection parents = collection(parent("p1"), parent("p2"), parent("p3"));
+        List<Entity> children = Arrays.asList(child("c1", "p1"), child("c2", "p2"), child("c3", "p1"));
+        SyncEntityCollectionProcessor.join(parents, children, "member", "Row Id", "household_id", true);
+        Assertions.assertEquals(Arrays.asList("c1", "c3"), inlineIds(parents.getEntities().get(0)));
+        Assertions.assertEquals(Arrays.asList("c2"), inlineIds(parents.getEntities().get(1)));
+        Assertions.assertEquals(Arrays.asList(), inlineIds(parents.getEntities().get(2)));
+    }
+
+    /**
+     * Test that each child gets its single parent
+     */
+    @Test
+    public void testJoinChildToParent() {
+        EntityCollection children = collection(child("c1", "p1"), child("c2", "p2"));
+        List<Entity> parents = Arrays.asList(parent("p1"), parent("p2"));
+        SyncEntityCollectionProcessor.join(children, parents, "household", "household_id", "Row Id", false);
+        Assertions.assertEquals("p1", id(link(children.getEntities().get(0)).getInlineEntity()));
+        Assertions.assertEquals("p2", id(link(children.getEntities().get(1)).getInlineEntity()));
+    }
+
+    /**
+     * Test that entities with a missing, null or dangling join key get an empty link, and related entities without
+     * a join key are never matched
+     */
+    @Test
+    public void testJoinMissingKeys() {
+        Entity noKey = new Entity().addProperty(property("Row Id", "c1"));
+        EntityCollection children = collection(noKey, child("c2", null), child("c3", "p9"));
+        List<Entity> parents = Arrays.asList(parent("p1"), new Entity());
+        SyncEntityCollectionProcessor.join(children, parents, "household", "household_id", "Row Id", false);
+        for (Entity child : children.getEntities()) {
+            Assertions.assertEquals("household", link(child).getTitle());
+            Assertions.assertNull(link(child).getInlineEntity());
+        }
+    }
+
+    private static EntityCollection collection(Entity... entities) {
+        EntityCollection entityCollection = new EntityCollection();
+        entityCollection.getEntities().addAll(Arrays.asList(entities));
+        return entityCollection;
+    }
+
+    private static Entity parent(String id) {
+        return new Entity().addProperty(property("Row Id", id));
+    }
+
+    private static Entity child(String id, String parentId) {
+        return new Entity().addProperty(property("Row Id", id)).addProperty(property("household_id", parentId));
+    }
+
+    private static Property property(String name, String value) {
+        return new Property("String", name, ValueType.PRIMITIVE, value);
+    }
+
+    private static Link link(Entity entity) {
+        Assertions.assertEquals(1, entity.getNavigationLinks().size());
+        return entity.getNavigationLinks().get(0);
+    }
+
+    private static List<String> inlineIds(Entity entity) {
+        return link(entity).getInlineEntitySet().getEntities().stream()
+                .map(SyncEntityCollectionProcessorTests::id).collect(Collectors.toList());
+    }
+
+    private static String id(Entity entity) {
+        return (String) entity.getProperty("Row Id").getValue();
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.odkxodata.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the Range header parsing of the SyncMediaEntityProcessor, which do not need a Sync server
+ */
+class SyncMediaEntityProcessorTests {
+
+    /**
+     * Test that a missing, multi-range or malformed Range header serves the whole content
+     */
+    @Test
+    public void testParseRangeWholeContent() {
+        Assertions.assertNull(SyncMediaEntityProcessor.parseRange(null, 1000));
+        Assertions.assertNull(SyncMediaEntityProcessor.parseRange("items=0-99", 1000));
+        Assertions.assertNull(SyncMediaEntityProcessor.parseRange("bytes=0-99,200-299", 1000));
+        Assertions.assertNull(SyncMediaEntityProcessor.parseRange("bytes=abc", 1000));
+        Assertions.assertNull(SyncMediaEntityProcessor.parseRange("bytes=a-99", 1000));
+        // a last byte before the first byte is syntactically invalid
+        Assertions.assertNull(SyncMediaEntityProcessor.parseRange("bytes=500-100", 1000));
+    }
+
+    /**
+     * Test ranges with a first and last byte, and open-ended ranges
+     */
+    @Test
+    public void testParseRange() {
+        Assertions.assertArrayEquals(new long[]{0, 99}, SyncMediaEntityProcessor.parseRange("bytes=0-99", 1000));
+        Assertions.assertArrayEquals(new long[]{500, 500}, SyncMediaEntityProcessor.parseRange("bytes=500-500", 1000));
+        Assertions.assertArrayEquals(new long[]{900, 999}, SyncMediaEntityProcessor.parseRange("bytes=900-", 1000));
+        // the last byte is limited to the content
+        Assertions.assertArrayEquals(new long[]{900, 999}, SyncMediaEntityProcessor.parseRange("bytes=900-5000", 1000));
+    }
+
+    /**
+     * Test suffix ranges, which address the last bytes of the content
+     */
+    @Test
+    public void testParseSuffixRange() {
+        Assertions.assertArrayEquals(new long[]{900, 999}, SyncMediaEntityProcessor.parseRange("bytes=-100", 1000));
+        Assertions.assertArrayEquals(new long[]{0, 999}, SyncMediaEntityProcessor.parseRange("bytes=-5000", 1000));
+    }
+
+    /**
+     * Test that ranges outside of the content cannot be satisfied
+     */
+    @Test
+    public void testParseUnsatisfiableRange() {
+        Assertions.assertEquals(0, SyncMediaEntityProcessor.parseRange("bytes=1000-", 1000).length);
+        Assertions.assertEquals(0, SyncMediaEntityProcessor.parseRange("bytes=2000-3000", 1000).length);
+        Assertions.assertEquals(0, SyncMediaEntityProcessor.parseRange("bytes=-0", 1000).length);
+        Assertions.assertEquals(0, SyncMediaEntityProcessor.parseRange("bytes=0-", 0).length);
+    }
+}